@@ -3,9 +3,9 @@
  * Performs an Alpha-Beta Search, starting at the specified node. 
  * This is based on the code from Lab#2, but modified so the overall search returns the best move from ROOT
  * 
- * It is somewhat wasteful with memory, expanding all children of a node the first time it's visited.
- * However, this doesn't seem to be a particularly big problem because I only apply this on the last ~6-12
- * moves of a game, to make my program execute quicker. We can easily store a tree of this size in memory.
+ * Only the root is expanded into Nodes (so the caller gets a Node back). Below that, the search plays and 
+ * retracts moves on a single scratch board with QuartoBoard.undoMove, so no boards or nodes get allocated
+ * while searching the last ~6-12 moves of a game.
  */
 public class AlphaBetaSearch {
 
@@ -27,12 +27,10 @@ public class AlphaBetaSearch {
         int alpha = Integer.MIN_VALUE;
         int beta = Integer.MAX_VALUE; 
         int temp;
-        for(Node child : node.children.values()) { 
-            if(!child.isMax()) {
-                temp = Math.max(value, minValue(child, alpha, beta));
-            } else {
-                temp = Math.max(value, maxValue(child,alpha,beta));
-            }
+        QuartoBoard scratch = new QuartoBoard(node.board);
+        for(int i = 0; i < node.childCount; i++) { 
+            Node child = node.childAt(i);
+            temp = Math.max(value, childValue(scratch, node, child, alpha, beta));
 
             assert temp != Integer.MAX_VALUE && temp != Integer.MIN_VALUE;
 
@@ -50,56 +48,182 @@ public class AlphaBetaSearch {
 				// we already know such a path is optimal. Why explore further?
                 break;
 			}
-			
-			child.clearChildren();
-			System.gc();
         }
         System.out.println("Alpha-Beta value: " + value);
         return best;	
 	}		
 
-	public static int maxValue(Node node, int alpha, int beta) {
-		if (node instanceof TerminatingNode) {
-			return ((TerminatingNode)node).value;
+	/**
+	 * Value of one of the root's children, searched on the root's scratch board.
+	 */
+	private static int childValue(QuartoBoard board, Node root, Node child, int alpha, int beta) {
+		if (child instanceof TerminatingNode) {
+			return ((TerminatingNode)child).value;
+		} else if (root instanceof MaxChooseNode) {
+			// MAX handed over a piece: MIN places it next.
+			return minMoveValue(board, child.parentActionPieceID, alpha, beta);
 		} else {
-			int value = Integer.MIN_VALUE;
-			for(Node child : node) { 
-				if(!child.isMax()) {
-					value = Math.max(value, minValue(child, alpha, beta));
-				} else {
-					value = Math.max(value, maxValue(child,alpha,beta));
-				}
-				assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
-				if (value >= beta) {
-					return value;
-				}
-				alpha = Math.max(alpha,value);
+			// MAX placed its piece: MAX chooses the next one.
+			board.boardSet(child.parentActionCell, child.parentActionPieceID);
+			int value = maxChooseValue(board, alpha, beta);
+			board.undoMove(child.parentActionCell);
+			return value;
+		}
+	}
+
+	/**
+	 * MAX chooses a piece for MIN to place.
+	 */
+	public static int maxChooseValue(QuartoBoard board, int alpha, int beta) {
+		int value = Integer.MIN_VALUE;
+		for(int remaining = board.remainingPieces(); remaining != 0; remaining &= remaining - 1) {
+			int pieceID = Integer.numberOfTrailingZeros(remaining);
+			value = Math.max(value, minMoveValue(board, pieceID, alpha, beta));
+			if (value >= beta) {
+				return value;
+			}
+			alpha = Math.max(alpha, value);
+		}
+		assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
+		return value;
+	}
+
+	/**
+	 * MIN chooses a piece for MAX to place.
+	 */
+	public static int minChooseValue(QuartoBoard board, int alpha, int beta) {
+		int value = Integer.MAX_VALUE;
+		for(int remaining = board.remainingPieces(); remaining != 0; remaining &= remaining - 1) {
+			int pieceID = Integer.numberOfTrailingZeros(remaining);
+			value = Math.min(value, maxMoveValue(board, pieceID, alpha, beta));
+			if (value <= alpha) {
+				return value;
+			}
+			beta = Math.min(beta, value);
+		}
+		assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
+		return value;
+	}
+
+	/**
+	 * MAX places pieceID.
+	 */
+	public static int maxMoveValue(QuartoBoard board, int pieceID, int alpha, int beta) {
+		if(board.isPieceDeadly(pieceID))
+			return 1;
+		int value = Integer.MIN_VALUE;
+		for(int empty = board.emptyCells(); empty != 0; empty &= empty - 1) {
+			int cell = Integer.numberOfTrailingZeros(empty);
+			int result = board.moveAndTestUtility(1, cell, pieceID);
+			if(result == Integer.MAX_VALUE)
+				result = maxChooseValue(board, alpha, beta);
+			board.undoMove(cell);
+			value = Math.max(value, result);
+			if (value >= beta) {
+				return value;
 			}
-			assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
-            return value;	
+			alpha = Math.max(alpha, value);
 		}
+		assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
+		return value;
 	}
 
-	public static int minValue(Node node, int alpha, int beta) {
-		if (node instanceof TerminatingNode) {
-			return ((TerminatingNode)node).value;
-		} else {			
-			int value = Integer.MAX_VALUE;
-			for(Node child : node){
-				if(child.isMax()) {
-					value = Math.min(value, maxValue(child,alpha,beta));
-				} else {
-					value = Math.min(value, minValue(child, alpha, beta));
-				}
-				assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
-				if (value <= alpha) {
-					return value;
-				}
-				beta = Math.min(beta,value);
+	/**
+	 * MIN places pieceID.
+	 */
+	public static int minMoveValue(QuartoBoard board, int pieceID, int alpha, int beta) {
+		if(board.isPieceDeadly(pieceID))
+			return -1;
+		int value = Integer.MAX_VALUE;
+		for(int empty = board.emptyCells(); empty != 0; empty &= empty - 1) {
+			int cell = Integer.numberOfTrailingZeros(empty);
+			int result = board.moveAndTestUtility(-1, cell, pieceID);
+			if(result == Integer.MAX_VALUE)
+				result = minChooseValue(board, alpha, beta);
+			board.undoMove(cell);
+			value = Math.min(value, result);
+			if (value <= alpha) {
+				return value;
 			}
-			assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
-			return value;	
+			beta = Math.min(beta, value);
+		}
+		assert value != Integer.MAX_VALUE && value != Integer.MIN_VALUE;
+		return value;
+	}
+
+	// -------------------------------------------------------------
+	// Shallow probes for the hybrid tree search:
+	//
+
+	// Each thread probes on its own copy of the position.
+	private static final ThreadLocal<QuartoBoard> probeBoards = new ThreadLocal<QuartoBoard>() {
+		@Override
+		protected QuartoBoard initialValue() {
+			return new QuartoBoard((String)null);
+		}
+	};
+
+	/**
+	 * The value of the game for MAX, if searching at most plies actions (placements and choices of pieces) 
+	 * ahead proves it; else Node.UNPROVEN. maxToAct says whose turn it is, pendingPiece is the piece they 
+	 * have to place or -1 if they have to choose one. Having a deadly piece to place, or no safe piece to 
+	 * hand over, counts as decided without searching. position itself isn't changed.
+	 */
+	public static int probe(QuartoBoard position, boolean maxToAct, int pendingPiece, int plies) {
+		QuartoBoard board = probeBoards.get();
+		board.copyFrom(position);
+		int sign = maxToAct ? 1 : -1;
+		return pendingPiece == -1 ? probeChoose(board, sign, plies) : probeMove(board, sign, pendingPiece, plies);
+	}
+
+	/**
+	 * The player with sign (1 for MAX) places pieceID.
+	 */
+	private static int probeMove(QuartoBoard board, int sign, int pieceID, int plies) {
+		if(board.isPieceDeadly(pieceID))
+			return sign;
+		if(plies == 0)
+			return Node.UNPROVEN;
+		int value = -sign;
+		boolean unknown = false;
+		for(int empty = board.emptyCells(); empty != 0; empty &= empty - 1) {
+			int cell = Integer.numberOfTrailingZeros(empty);
+			board.boardSet(cell, pieceID);
+			// It can't win (the piece isn't deadly), so it's a draw or the same player chooses next.
+			int result = board.spacesLeft == 0 ? 0 : probeChoose(board, sign, plies - 1);
+			board.undoMove(cell);
+			if(result == sign)
+				return result;
+			if(result == Node.UNPROVEN)
+				unknown = true;
+			else if(result * sign > value * sign)
+				value = result;
+		}
+		return unknown ? Node.UNPROVEN : value;
+	}
+
+	/**
+	 * The player with sign (1 for MAX) chooses a piece for the other one.
+	 */
+	private static int probeChoose(QuartoBoard board, int sign, int plies) {
+		int safe = board.safePieces();
+		if(safe == 0)
+			return -sign;
+		if(plies == 0)
+			return Node.UNPROVEN;
+		// The other pieces lose, so they can't be better than any safe one.
+		int value = -sign;
+		boolean unknown = false;
+		for(; safe != 0; safe &= safe - 1) {
+			int result = probeMove(board, -sign, Integer.numberOfTrailingZeros(safe), plies - 1);
+			if(result == sign)
+				return result;
+			if(result == Node.UNPROVEN)
+				unknown = true;
+			else if(result * sign > value * sign)
+				value = result;
 		}
+		return unknown ? Node.UNPROVEN : value;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+import java.util.*;
+
+/**
+ * Plays a batch of games out from the same position in lockstep: every step, each game still running
+ * hands over a piece and places one, using the same policy as MonteCarloBoardSimulation (hand over a piece
+ * the opponent can't win with if there is one; win if the piece allows it, else place it randomly).
+ *
+ * The games are kept in a struct-of-arrays layout: for every line, the AND, OR and count of all games sit
+ * next to each other (index line * stride + game), as do the occupied cells, remaining pieces etc. of
+ * all games. Since every game starts from the same position and makes one move per step, whose turn it is
+ * and how many cells are left is the same in all of them; only a win ends a game early.
+ *
+ * The random choices are made per game, but the line work (which pieces are deadly, which cells win for the
+ * piece to place, updating the lines after the move) is done for all games at once by the three kernels
+ * below, which VectorBatchPlayoutEngine (in vector/, which needs jdk.incubator.vector) implements with SIMD
+ * operations. Done with plain loops they are slower than playing the games one by one with
+ * MonteCarloBoardSimulation, so there is no scalar engine: without the vector module, createVector returns
+ * null and the games are played one by one.
+ */
+public abstract class BatchPlayoutEngine {
+    protected final int lanes;
+    protected final int stride;
+
+    protected final int[] lineAnd;
+    protected final int[] lineOr;
+    protected final int[] lineCount;
+    protected final int[] occupied;
+    protected final int[] pieces;
+    protected final int[] piece;
+    protected final int[] cellBit;
+    protected final int[] deadly;
+    protected final int[] winCells;
+    private final boolean[] running;
+
+    /**
+     * lanes is the number of games per batch; stride (at least lanes) is the length of each per-line row,
+     * so subclasses can round it up to their vector length and not worry about a tail.
+     */
+    protected BatchPlayoutEngine(int lanes, int stride) {
+        this.lanes = lanes;
+        this.stride = stride;
+        lineAnd = new int[QuartoBoard.numberOfLines * stride];
+        lineOr = new int[QuartoBoard.numberOfLines * stride];
+        lineCount = new int[QuartoBoard.numberOfLines * stride];
+        occupied = new int[stride];
+        pieces = new int[stride];
+        piece = new int[stride];
+        cellBit = new int[stride];
+        deadly = new int[stride];
+        winCells = new int[stride];
+        running = new boolean[stride];
+    }
+
+    /**
+     * The vector engine if its class is there and jdk.incubator.vector is loaded, else null.
+     */
+    public static BatchPlayoutEngine createVector(int lanes) {
+        try {
+            return (BatchPlayoutEngine)Class.forName("VectorBatchPlayoutEngine")
+                .getConstructor(int.class).newInstance(lanes);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public int lanes() {
+        return lanes;
+    }
+
+    /**
+     * Play games games out from board, and return the sum of their utilities for max. maxToAct and
+     * pendingPiece are as in MonteCarloBoardSimulation.play. The board itself isn't changed.
+     */
+    public int play(QuartoBoard board, boolean maxToAct, int pendingPiece, int games, SearchRandom random) {
+        int utility = 0;
+        for(int start = 0; start < games; start += lanes)
+            utility += playRound(board, maxToAct, pendingPiece, Math.min(lanes, games - start), random);
+        return utility;
+    }
+
+    private int playRound(QuartoBoard board, boolean maxToAct, int pieceID, int games, SearchRandom random) {
+        if(board.spacesLeft == 0)
+            return 0;
+
+        for(int line = 0; line < QuartoBoard.numberOfLines; line++) {
+            int row = line * stride;
+            Arrays.fill(lineAnd, row, row + stride, board.lineAnd(line));
+            Arrays.fill(lineOr, row, row + stride, board.lineOr(line));
+            Arrays.fill(lineCount, row, row + stride, board.lineCount(line));
+        }
+        Arrays.fill(occupied, board.occupied);
+        Arrays.fill(pieces, board.pieces);
+        Arrays.fill(running, 0, games, true);
+        Arrays.fill(running, games, stride, false);
+        Arrays.fill(cellBit, 0);
+
+        int spacesLeft = board.spacesLeft;
+        int left = games;
+        int utility = 0;
+        while(true) {
+            if(pieceID == -1) {
+                // Hand the opponent a piece; then it's their move.
+                computeDeadly();
+                for(int g = 0; g < games; g++) {
+                    if(!running[g])
+                        continue;
+                    int safe = pieces[g] & ~deadly[g];
+                    piece[g] = QuartoBoard.randomSetBit(safe != 0 ? safe : pieces[g], random);
+                }
+                maxToAct = !maxToAct;
+            } else {
+                Arrays.fill(piece, pieceID);
+                pieceID = -1;
+            }
+
+            computeWinCells();
+            for(int g = 0; g < games; g++) {
+                cellBit[g] = 0;
+                if(!running[g])
+                    continue;
+                pieces[g] &= ~(1 << piece[g]);
+                if(winCells[g] != 0) {
+                    utility += maxToAct ? 1 : -1;
+                    running[g] = false;
+                    left--;
+                } else {
+                    int free = ~occupied[g] & QuartoBoard.FULL_BOARD;
+                    cellBit[g] = 1 << QuartoBoard.randomSetBit(free, random);
+                    occupied[g] |= cellBit[g];
+                }
+            }
+            if(left == 0 || --spacesLeft == 0)
+                return utility; // Whatever's still running is a draw.
+            applyMoves();
+        }
+    }
+
+    /**
+     * deadly[g] = the pieces that complete some line of game g (from the lines holding 4 pieces).
+     */
+    protected abstract void computeDeadly();
+
+    /**
+     * winCells[g] = the empty cells where piece[g] completes a line of game g.
+     */
+    protected abstract void computeWinCells();
+
+    /**
+     * Add piece[g] to the lines through cellBit[g] (nothing, where cellBit[g] is 0).
+     */
+    protected abstract void applyMoves();
+}
@@ -1,90 +1,164 @@
-
 /**
  * Plays out a game to the end.
- * This makes use of mutual recursion because it is naturally suited to the tree structure. 
+ * An instance is a playout engine with its own scratch board, so give every worker thread its own engine;
+ * a playout is then a flat loop over that board, and allocates nothing.
  */
 public class MonteCarloBoardSimulation {
 
-    // Use only 1 copy of the board over and over again to reduce strain on the garbage collector
-    private static QuartoBoard copy = new QuartoBoard((String)null);
-	private static int[] piecesBuffer = new int[32]; 
-    
+    // Use only 1 copy of the board (per engine) over and over again to reduce strain on the garbage collector
+    private final QuartoBoard copy = new QuartoBoard((String)null);
+    // The packed position unpack() last unpacked, so more games from it only cost a copy.
+    private final QuartoBoard unpacked = new QuartoBoard((String)null);
+    private long unpackedLo, unpackedHi;
+    private boolean hasUnpacked = false;
+
+    /**
+     * What the last playout did (for AMAF statistics): masks of the pieces each side handed over and of 
+     * the cells each side filled.
+     */
+    public int maxPieces, minPieces, maxCells, minCells;
+
+    // The engine used by playGameToFinish on each thread.
+    private static final ThreadLocal<MonteCarloBoardSimulation> engines = new ThreadLocal<MonteCarloBoardSimulation>() {
+        @Override
+        protected MonteCarloBoardSimulation initialValue() {
+            return new MonteCarloBoardSimulation();
+        }
+    };
+
+    // The batch engine used by playGamesToFinish on each thread; null without the vector engine.
+    private static final ThreadLocal<BatchPlayoutEngine> batchEngines = new ThreadLocal<BatchPlayoutEngine>() {
+        @Override
+        protected BatchPlayoutEngine initialValue() {
+            return BatchPlayoutEngine.createVector(SearchConfig.BATCH_LANES);
+        }
+    };
+
     /**
      * Take a Node and play out (a copy of) its board to the very end. Then return the resulting utility
-     * 1 - win 
-     * 0 - draw 
+     * 1 - win
+     * 0 - draw
      * -1 - loss
      */
-    public static int playGameToFinish(Node node) {
-        // This is implemented with a bunch of mutually recursive calls.
-        // We need to branch into the correct one at the start, then we're good to go
+    public static int playGameToFinish(Node node, SearchRandom random) {
+        return playGameToFinish(node, node.board, random);
+    }
+
+    /**
+     * The same, for a node whose board is position (for nodes that don't keep a board, see Node).
+     */
+    public static int playGameToFinish(Node node, QuartoBoard position, SearchRandom random) {
         if(node instanceof TerminatingNode) {
         	return ((TerminatingNode)node).value;
-        } 
-
-        // Copy the board. 
-        copy.pieces = node.board.pieces;
-		copy.spacesLeft = node.board.spacesLeft;
-		for (int i = 0; i < QuartoBoard.numberOfCells; i++) 
-            copy.board[i] = node.board.board[i]; 
-        assert copy.equals(node.board);
-
-        // Branch into the correct part of the simulation      
-        if(node instanceof MaxChooseNode){
-            return playGameMaxChoose();
-        } else if (node instanceof MaxMoveNode){ 
-            int lastPiece = ((MaxMoveNode)node).parentActionPieceID; 
-            return playGameMaxMove(lastPiece);
-        } else if (node instanceof MinChooseNode){
-            return playGameMinChoose();
-        } else if (node instanceof MinMoveNode){
-            int lastPiece = ((MinMoveNode)node).parentActionPieceID; 
-            return playGameMinMove(lastPiece);
         }
-        throw new RuntimeException("Invalid play_Game");
+        int pendingPiece = (node instanceof MaxMoveNode || node instanceof MinMoveNode) ? node.parentActionPieceID : -1;
+        return engines.get().play(position, node.isMax(), pendingPiece, random);
     }
-    
-    private static int playGameMaxMove(int pieceID) {
-        int result = copy.moveAndTestUtility(1, chooseWinningCell(pieceID), pieceID);
-        if(result == Integer.MAX_VALUE) 
-            return playGameMaxChoose();
-        else 
-            return result;
+
+    /**
+     * The engine playGameToFinish uses on the calling thread, so still holding what its last playout did.
+     */
+    public static MonteCarloBoardSimulation current() {
+        return engines.get();
     }
 
-    private static int playGameMaxChoose() {
-        return playGameMinMove(chooseNonWinningPiece());
+    /**
+     * Play games games out from the Node, whose board is position, at once (see BatchPlayoutEngine), and 
+     * return the sum of their utilities. Without the vector engine they're played one by one on this 
+     * thread's engine instead, which is faster than the plain batch kernel.
+     */
+    public static int playGamesToFinish(Node node, QuartoBoard position, int games, SearchRandom random) {
+        if(node instanceof TerminatingNode) {
+        	return games * ((TerminatingNode)node).value;
+        }
+        int pendingPiece = (node instanceof MaxMoveNode || node instanceof MinMoveNode) ? node.parentActionPieceID : -1;
+        BatchPlayoutEngine batch = batchEngines.get();
+        if(batch != null)
+            return batch.play(position, node.isMax(), pendingPiece, games, random);
+        MonteCarloBoardSimulation engine = engines.get();
+        int utility = 0;
+        for(int i = 0; i < games; i++)
+            utility += engine.play(position, node.isMax(), pendingPiece, random);
+        return utility;
     }
 
-    private static int playGameMinMove(int pieceID) {
-        int result = copy.moveAndTestUtility(-1, chooseWinningCell(pieceID), pieceID);
-        if(result == Integer.MAX_VALUE) 
-            return playGameMinChoose();
-        else 
-            return result;
+    /**
+     * The same, from a packed position (see PackedPosition), which is unpacked on this thread's engine.
+     */
+    public static int playGamesToFinish(Node node, long lo, long hi, int games, SearchRandom random) {
+        if(node instanceof TerminatingNode) {
+        	return games * ((TerminatingNode)node).value;
+        }
+        return playGamesToFinish(node, engines.get().unpack(lo, hi), games, random);
     }
 
-    private static int playGameMinChoose() {
-        return playGameMaxMove(chooseNonWinningPiece());
+    /**
+     * Play out the packed position (see PackedPosition) to the very end, and return the resulting utility
+     * for max. maxToAct says whose turn it is; pendingPiece is the piece they have to place, or -1 if
+     * they have to choose a piece for the opponent.
+     */
+    public int play(long lo, long hi, boolean maxToAct, int pendingPiece, SearchRandom random) {
+        return play(unpack(lo, hi), maxToAct, pendingPiece, random);
     }
-    
+
     /**
-     * Select a (random) piece that doesn't let the opponent win on the next move; if none available 
-     * then just return a random piece.
+     * The packed position as a board. The board belongs to this engine and stays valid until a different 
+     * position is unpacked; the same one isn't unpacked again.
+     */
+    public QuartoBoard unpack(long lo, long hi) {
+        if(!hasUnpacked || lo != unpackedLo || hi != unpackedHi) {
+            PackedPosition.toBoard(lo, hi, unpacked);
+            assert PackedPosition.of(unpacked).equals(new PackedPosition(lo, hi));
+            unpackedLo = lo;
+            unpackedHi = hi;
+            hasUnpacked = true;
+        }
+        return unpacked;
+    }
+
+    /**
+     * The same, from a board. The board itself isn't changed.
      */
-	public static int chooseNonWinningPiece(){
-        int count = 0;
-        for(int i = 0; i < QuartoBoard.numberOfPieces; i++){
-            if(!copy.isPieceOnBoard(i) && !doesWinExist(i)) {
-                piecesBuffer[count] = i;
-                count++;
+    public int play(QuartoBoard board, boolean maxToAct, int pendingPiece, SearchRandom random) {
+        copy.copyFrom(board);
+        assert copy.equals(board);
+        return playOut(maxToAct, pendingPiece, random);
+    }
+
+    private int playOut(boolean maxToAct, int pieceID, SearchRandom random) {
+        maxPieces = minPieces = maxCells = minCells = 0;
+        while(true) {
+            if(pieceID == -1) {
+                // Hand the opponent a piece; then it's their move.
+                pieceID = chooseNonWinningPiece(copy, random);
+                if(maxToAct)
+                    maxPieces |= 1 << pieceID;
+                else
+                    minPieces |= 1 << pieceID;
+                maxToAct = !maxToAct;
             }
+            int cell = chooseWinningCell(copy, pieceID, random);
+            if(maxToAct)
+                maxCells |= 1 << cell;
+            else
+                minCells |= 1 << cell;
+            int result = copy.moveAndTestUtility(maxToAct ? 1 : -1, cell, pieceID);
+            if(result != Integer.MAX_VALUE)
+                return result;
+            pieceID = -1;
         }
+    }
 
-        if(count == 0){
-            return copy.chooseRandomPieceNotPlayed();
+    /**
+     * Select a (random) piece that doesn't let the opponent win on the next move; if none available
+     * then just return a random piece.
+     */
+	public static int chooseNonWinningPiece(QuartoBoard copy, SearchRandom random){
+        int safe = copy.safePieces();
+        if(safe == 0){
+            return copy.chooseRandomPieceNotPlayed(random);
         } else {
-            return piecesBuffer[(int)(Math.random() * count)];
+            return QuartoBoard.randomSetBit(safe, random);
         }
 	}
 
@@ -92,24 +166,17 @@ public class MonteCarloBoardSimulation {
      * Checks if the pieceID can be played anywhere on the board, resulting in
      * a win from that particular move.
      */
-    public static boolean doesWinExist(int pieceID){
-        for(int i = 0; i < QuartoBoard.numberOfCells; i++) {
-            if(copy.board[i] == -1 && copy.doesMoveWin(i, pieceID)){ 
-                return true;
-            }
-        }
-        return false;
+    public static boolean doesWinExist(QuartoBoard copy, int pieceID){
+        return copy.isPieceDeadly(pieceID);
     }
 
     /**
      * Choose winning cell if it exists; else play a random move.
      */
-    public static int chooseWinningCell(int pieceID){
-        for(int i = 0; i < QuartoBoard.numberOfCells; i++) {
-            if(copy.board[i] == -1 && copy.doesMoveWin(i, pieceID)){ 
-                return i;
-            }
-        }
-        return copy.chooseRandomPositionNotPlayed();
+    public static int chooseWinningCell(QuartoBoard copy, int pieceID, SearchRandom random){
+        int cell = copy.findWinningCell(pieceID);
+        if(cell != -1)
+            return cell;
+        return copy.chooseRandomPositionNotPlayed(random);
     }
 }
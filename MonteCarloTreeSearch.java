@@ -0,0 +1,801 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * The Monte Carlo Tree Search (UCT) over the Node tree: selection with UCB, random expansion, a playout, 
+ * and backup of the result along the path.
+ *
+ * With more than one thread this runs as a tree-parallel search: all workers descend the same tree at once. 
+ * Every node is its own lock, held only while a worker reads/changes that node's children or statistics, 
+ * never while it descends further or runs a playout, so workers only ever hold one lock at a time. 
+ * Selecting a node adds a virtual loss to it until the result of that simulation is backed up, which makes 
+ * the other workers see it as worse for a while and spread out over the tree instead of all following the 
+ * same path. Reads of a child's statistics during selection aren't locked; a slightly stale value only 
+ * changes which child gets explored.
+ *
+ * In root-parallel mode the workers don't share anything while searching: every extra worker grows its own 
+ * private tree from a fresh copy of the root, and when time is up the visit counts and utility sums of its 
+ * root's children are added to the matching children of the real root. The answer (and the diagnostics 
+ * printed by the agent) then come from the merged statistics.
+ *
+ * Independently of that, each expanded leaf can be evaluated with a batch of playouts instead of one 
+ * (leaf parallelism). The batch is split over a work-stealing pool, and its summed utility is backed up as 
+ * one update worth that many games. Every simulation then counts as the same number of games along its 
+ * whole path, including when it ends in a terminal or solved node.
+ *
+ * With a TranspositionTable the tree becomes a DAG: when a leaf gets a new child whose position already has 
+ * a node, the existing node is linked in instead, so all the paths reaching a position share its statistics. 
+ * Backup still just follows the path the simulation came down (every node on it gets the result once), so a 
+ * shared node's statistics are those of all simulations through its position, whichever parent they came 
+ * from. Since a shared node's parentAction fields belong to the first path, the action on an edge is always 
+ * taken from the slot it's in in the parent's children. The table isn't used in root-parallel mode, where the trees 
+ * mustn't share nodes.
+ *
+ * With lazy boards (see Node) only the root has a board. Each worker keeps a scratch copy of it, plays the 
+ * actions onto it on the way down (enter) and takes them back on the way up (leave), so the scratch board is 
+ * always the board of the node being looked at.
+ *
+ * The search is an MCTS-Solver: terminal nodes and solved move nodes are proven, and a node whose children 
+ * settle its value (see Node.proveFromChildren) gets proven when a simulation backs up through it. Selection 
+ * never goes into a proven child, a proven node backs up its proven value without searching, and the search 
+ * ends as soon as the root is proven.
+ *
+ * In the hybrid search (probePlies above 0), a node added with HYBRID_MIN_EMPTY to HYBRID_MAX_EMPTY empty cells 
+ * is first probed with a shallow alpha-beta search (AlphaBetaSearch.probe). If that proves its value, the node 
+ * is proven right away and the value is backed up instead of a playout: the forced wins and losses random 
+ * playouts keep missing feed straight into the solver.
+ *
+ * With RAVE (raveEquivalence above 0) every simulation also records which pieces each side handed over and 
+ * which cells each side filled, in the tree and in the playout. On the way back up, each node credits the 
+ * result to all its children whose action the player to act there made at any point later on (all moves as 
+ * first), and selection blends that average into a child's own with weight sqrt(k / (3n + k)) after n games. 
+ * That gives every child of a wide node a usable estimate long before UCB alone would. Batched leaf playouts 
+ * don't report their moves, so with those only the in-tree part of a simulation counts.
+ *
+ * With progressive widening (widening above 0), a node below the root doesn't try every action before it 
+ * starts to pick among its children: after n visits it only gets WIDENING_BASE * (n + 1)^widening children, 
+ * and once it has that many, the simulation selects among them. The children are added best prior first 
+ * (see Node.expandBest), so a choose node tries the safe pieces before handing over a winning one, and a 
+ * move node tries the placements that leave the most safe pieces first. Instead of spending a playout on 
+ * each of up to 32 pieces at every level, the search goes deeper into the promising ones.
+ *
+ * A tree may hold at most nodeBudget nodes (split evenly between the trees in root-parallel mode). When it 
+ * gets bigger, the least visited nodes lose their children: a node keeps its own statistics (which already 
+ * sum up everything below it) and just becomes a leaf again, to be expanded anew if the search comes back. 
+ * The subtrees are dropped in one go, until the tree is down to PRUNE_TO of its budget. Simulations hold 
+ * their tree's read lock and pruning takes the write lock, so it only happens between simulations.
+ *
+ * A search runs until its deadline, or until the root is proven, or (with a shared root) until the child 
+ * that would be played can't be overtaken any more: at the rate the search has been going, the simulations 
+ * left until the deadline can't bring any other child's average above its own (see decided). The clock and 
+ * that test are only looked at every TimeManager.CLOCK_CHECK_INTERVAL simulations.
+ */
+public class MonteCarloTreeSearch {
+    // Higher = more exploration. Optimal = 1.0 / SQRT(2.0) 
+    public static final double optimalParameter = 1.0 / Math.sqrt(2.0);
+    // Explore more generously at the root.
+    private static final double rootExplorationFactor = 5;
+    // Pruning brings a tree down to this fraction of its budget.
+    private static final double PRUNE_TO = 0.75;
+    // Visit counts (in simulations) up to which pruning tells nodes apart.
+    private static final int PRUNE_BUCKETS = 1024;
+    // Children a node gets on its first visit with progressive widening.
+    private static final double WIDENING_BASE = 2;
+
+    private final int threads;
+    private final boolean rootParallel;
+    private final ExecutorService workers;
+    private final int playoutsPerLeaf;
+    private final ForkJoinPool playoutPool;
+    private final TranspositionTable transpositions;
+    private final int nodeBudget;
+    private final int probePlies;
+    private final int raveEquivalence;
+    private final double widening;
+    private final AtomicInteger simulations = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+    private final AtomicInteger prunes = new AtomicInteger();
+    // Passes over a tree stamp the nodes they saw with their own mark (see Node.mark).
+    private final AtomicInteger marks = new AtomicInteger();
+    private volatile int treeSize;
+
+    /**
+     * @param transpositions - table for sharing nodes between paths, or null to search a plain tree
+     * @param nodeBudget - most nodes the tree may have before it's pruned
+     * @param probePlies - depth of the alpha-beta probe of new nodes in the hybrid search, or 0 for none
+     * @param raveEquivalence - RAVE equivalence parameter k, or 0 for no RAVE
+     * @param widening - progressive widening exponent, or 0 to expand every child before selecting among them
+     */
+    public MonteCarloTreeSearch(int threads, boolean rootParallel, int playoutsPerLeaf, int playoutThreads, 
+                                TranspositionTable transpositions, int nodeBudget, int probePlies, int raveEquivalence, 
+                                double widening) {
+        this.threads = threads;
+        this.nodeBudget = nodeBudget;
+        this.probePlies = probePlies;
+        this.raveEquivalence = raveEquivalence;
+        this.widening = widening;
+        this.rootParallel = rootParallel;
+        this.playoutsPerLeaf = playoutsPerLeaf;
+        this.playoutPool = playoutsPerLeaf > 1 ? new ForkJoinPool(playoutThreads) : null;
+        this.transpositions = rootParallel ? null : transpositions;
+        if(threads > 1) {
+            workers = Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mcts-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            workers = null;
+        }
+    }
+
+    /**
+     * Number of simulations run by the last search.
+     */
+    public int getSimulations() {
+        return simulations.get();
+    }
+
+    /**
+     * Number of nodes in the tree (all the trees, in root-parallel mode) at the end of the last search.
+     */
+    public int getTreeSize() {
+        return treeSize;
+    }
+
+    /**
+     * Number of nodes pruned away during the last search, and the number of times that happened.
+     */
+    public int getEvicted() {
+        return evicted.get();
+    }
+
+    public int getPrunes() {
+        return prunes.get();
+    }
+
+    /**
+     * A tree being searched, with its size and the lock that keeps pruning and simulations apart.
+     */
+    private static final class SearchTree {
+        final Node root;
+        final int budget;
+        final AtomicInteger nodes = new AtomicInteger();
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        SearchTree(Node root, int budget) {
+            this.root = root;
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Run simulations below root (which must be expanded) until the deadline (System.nanoTime()) passes. 
+     * The calling thread is one of the workers.
+     */
+    public void search(Node root, long deadline) {
+        search(root, deadline, new AtomicBoolean());
+    }
+
+    /**
+     * The same, also stopping as soon as stop gets set (from another thread). root may be a MIN node too, 
+     * for searching on the opponent's time.
+     */
+    public void search(final Node root, final long deadline, final AtomicBoolean stop) {
+        simulations.set(0);
+        evicted.set(0);
+        prunes.set(0);
+        if(transpositions != null)
+            transpositions.clear();
+        final int budget = rootParallel ? nodeBudget / threads : nodeBudget;
+        final SearchTree tree = new SearchTree(root, budget);
+        tree.nodes.set(countNodes(root, marks.incrementAndGet()));
+        // The workers' generators are split off the caller's, so a seeded run seeds all of them the same way.
+        SearchRandom random = SearchRandom.current();
+        List<Future<SearchTree>> running = new ArrayList<Future<SearchTree>>();
+        for(int i = 1; i < threads; i++) {
+            final SearchRandom workerRandom = random.split();
+            running.add(workers.submit(new Callable<SearchTree>() {
+                @Override
+                public SearchTree call() {
+                    SearchTree workerTree = tree;
+                    if(rootParallel) {
+                        workerTree = new SearchTree(copyRoot(root), budget);
+                        workerTree.nodes.set(1 + workerTree.root.childCount);
+                    }
+                    runSimulations(workerTree, deadline, stop, workerRandom);
+                    return workerTree;
+                }
+            }));
+        }
+        runSimulations(tree, deadline, stop, random);
+        int size = tree.nodes.get();
+        for(Future<SearchTree> worker : running) {
+            try {
+                SearchTree workerTree = worker.get();
+                if(workerTree != tree) {
+                    mergeRoot(root, workerTree.root);
+                    size += workerTree.nodes.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException("Search worker failed", e);
+            }
+        }
+        treeSize = size;
+    }
+
+    /**
+     * A new, expanded root for the same position, sharing nothing with the original.
+     */
+    private static Node copyRoot(Node root) {
+        Node copy;
+        if(root instanceof MaxChooseNode) {
+            copy = new MaxChooseNode(new QuartoBoard(root.board), -1, -1);
+        } else if(root instanceof MinChooseNode) {
+            copy = new MinChooseNode(new QuartoBoard(root.board), -1, -1);
+        } else if(root instanceof MaxMoveNode) {
+            copy = new MaxMoveNode(new QuartoBoard(root.board), root.parentActionPieceID);
+        } else {
+            copy = new MinMoveNode(new QuartoBoard(root.board), root.parentActionPieceID);
+        }
+        copy.expand();
+        return copy;
+    }
+
+    /**
+     * Add the statistics of another tree's root children to the matching children of root, and the other 
+     * root's simulations to root's (the root counts simulations, its children playouts). Values the other 
+     * tree proved carry over too.
+     */
+    private static void mergeRoot(Node root, Node other) {
+        synchronized(root) {
+            for(int i = 0; i < other.childCount; i++) {
+                Node otherChild = other.childAt(i);
+                Node child = root.getChild(other.actionAt(i));
+                if(child == null)
+                    continue;
+                synchronized(child) {
+                    child.totalGames += otherChild.totalGames;
+                    child.utilitySum += otherChild.utilitySum;
+                    if(otherChild.isProven() && !child.isProven())
+                        child.proven = otherChild.proven;
+                }
+            }
+            root.totalGames += other.totalGames;
+            if(other.isProven() && !root.isProven())
+                root.proven = other.proven;
+            root.proveFromChildren();
+        }
+    }
+
+    private void runSimulations(SearchTree tree, long deadline, AtomicBoolean stop, SearchRandom random) {
+        Node root = tree.root;
+        int multiplier = root.isMax() ? 1 : -1;
+        // With lazy boards, every worker plays the simulations on its own copy of the root's board.
+        QuartoBoard scratch = Node.lazyBoards ? new QuartoBoard(root.board) : null;
+        Amaf amaf = raveEquivalence > 0 ? new Amaf() : null;
+        Lock simulating = tree.lock.readLock();
+        int count = 0;
+        long started = System.nanoTime();
+        simulating.lock();
+        try {
+            for(; !stop.get() && !root.isProven(); count++) {
+                if((count & (TimeManager.CLOCK_CHECK_INTERVAL - 1)) == 0) {
+                    long now = System.nanoTime();
+                    if(now >= deadline)
+                        break;
+                    // All workers share the root, unless they're root-parallel.
+                    if(count > 0 && !rootParallel && decided(root, (double)count / (now - started) * ((double)deadline - now) * threads))
+                        break;
+                }
+                if(tree.nodes.get() > tree.budget) {
+                    simulating.unlock();
+                    try {
+                        prune(tree);
+                    } finally {
+                        simulating.lock();
+                    }
+                }
+                Node best;
+                int action;
+                synchronized(root) {
+                    int i = argmax(root, Math.max(1, root.totalGames), multiplier, optimalParameter * rootExplorationFactor);
+                    if(i == -1) {
+                        // Every child is proven, so the root is too.
+                        root.proveFromChildren();
+                        break;
+                    }
+                    best = root.childAt(i);
+                    action = root.actionAt(i);
+                    root.totalGames++;
+                    best.addVirtualLoss();
+                }
+                runSimulation(tree, root, action, best, scratch, amaf, random);
+                if(best.isProven()) {
+                    synchronized(root) {
+                        root.proveFromChildren();
+                    }
+                }
+            }
+        } finally {
+            simulating.unlock();
+        }
+        simulations.addAndGet(count);
+    }
+
+    // -------------------------------------------------------------
+    // Pruning:
+    //
+
+    /**
+     * Bring the tree down to PRUNE_TO of its budget, by clearing the children of every node visited at most 
+     * some threshold number of times; the threshold is the lowest one that frees enough nodes. The root's 
+     * children are always kept. Waits for all running simulations to finish first.
+     */
+    private void prune(SearchTree tree) {
+        tree.lock.writeLock().lock();
+        try {
+            if(tree.nodes.get() <= tree.budget)
+                return; // Another worker pruned while we waited.
+            // histogram[b]: number of nodes whose parent is in visit bucket b.
+            int[] histogram = new int[PRUNE_BUCKETS + 1];
+            int total = histogram(tree.root, PRUNE_BUCKETS, marks.incrementAndGet(), histogram);
+            int target = (int)(tree.budget * PRUNE_TO);
+            int threshold = 0;
+            int kept = total - histogram[0];
+            while(kept > target && threshold < PRUNE_BUCKETS - 1)
+                kept -= histogram[++threshold];
+            int size = pruneBelow(tree.root, PRUNE_BUCKETS, threshold, marks.incrementAndGet());
+            tree.nodes.set(size);
+            evicted.addAndGet(total - size);
+            prunes.incrementAndGet();
+            // The table would keep the dropped nodes alive.
+            if(transpositions != null)
+                transpositions.clear();
+        } finally {
+            tree.lock.writeLock().unlock();
+        }
+    }
+
+    private int bucket(Node node) {
+        return Math.min(node.totalGames / playoutsPerLeaf, PRUNE_BUCKETS - 1);
+    }
+
+    /**
+     * Number of nodes from node down, counting shared nodes once. 
+     */
+    private static int countNodes(Node node, int mark) {
+        node.mark = mark;
+        int count = 1;
+        if(node.children != null) {
+            for(int i = 0; i < node.childCount; i++) {
+                Node child = node.childAt(i);
+                if(child.mark != mark)
+                    count += countNodes(child, mark);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * countNodes, also adding the children of every node to histogram under that node's bucket.
+     */
+    private int histogram(Node node, int bucket, int mark, int[] histogram) {
+        node.mark = mark;
+        int count = 1;
+        if(node.children != null) {
+            for(int i = 0; i < node.childCount; i++) {
+                Node child = node.childAt(i);
+                if(child.mark != mark) {
+                    histogram[bucket]++;
+                    count += histogram(child, bucket(child), mark, histogram);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Clear the children of the nodes from node down that are in a bucket up to threshold. Returns the 
+     * number of nodes left.
+     */
+    private int pruneBelow(Node node, int bucket, int threshold, int mark) {
+        node.mark = mark;
+        if(node.children == null)
+            return 1;
+        if(bucket <= threshold) {
+            node.clearChildren();
+            return 1;
+        }
+        int count = 1;
+        for(int i = 0; i < node.childCount; i++) {
+            Node child = node.childAt(i);
+            if(child.mark != mark)
+                count += pruneBelow(child, bucket(child), threshold, mark);
+        }
+        return count;
+    }
+
+    /**
+     * The child we'd actually play: a proven win if there is one, else the best average (no exploration), 
+     * with proven children counting at their proven value, so a proven loss is only played if all children lose.
+     */
+    public Node bestChild(Node root) {
+        synchronized(root) {
+            return root.childAt(bestIndex(root));
+        }
+    }
+
+    /**
+     * The action (cell or piece) of the child we'd actually play. 
+     */
+    public int bestChildAction(Node root) {
+        synchronized(root) {
+            return root.actionAt(bestIndex(root));
+        }
+    }
+
+    /**
+     * Is the child bestIndex picks certain to stay ahead, if remaining more simulations run through root? That's 
+     * the case if its average stays above every other child's even if all of them went the worst way for it, 
+     * or the best way for that other child. (Proven children keep their value.)
+     */
+    private boolean decided(Node root, double remaining) {
+        if(remaining <= 0)
+            return false;
+        double games = remaining * playoutsPerLeaf;
+        synchronized(root) {
+            int multiplier = root.isMax() ? 1 : -1;
+            int best = bestIndex(root);
+            Node leader = root.childAt(best);
+            double floor = leader.isProven() ? 2 * leader.proven * multiplier 
+                                             : (leader.utilitySum * multiplier - games) / (leader.totalGames + games);
+            for(int i = 0; i < root.childCount; i++) {
+                Node child = root.childAt(i);
+                if(i == best)
+                    continue;
+                double ceiling = child.isProven() ? 2 * child.proven * multiplier 
+                                                  : (child.utilitySum * multiplier + games) / (child.totalGames + games);
+                if(ceiling >= floor)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static int bestIndex(Node root) {
+        int multiplier = root.isMax() ? 1 : -1;
+        int best = 0;
+        double bestStat = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < root.childCount; i++) {
+            Node child = root.childAt(i);
+            if(child.proven == multiplier)
+                return i;
+            double stat = child.isProven() ? 2 * child.proven * multiplier : computeUCB(child, 1, multiplier, 0, 0);
+            if(stat > bestStat) {
+                best = i;
+                bestStat = stat;
+            }
+        }
+        return best;
+    }
+
+    // -------------------------------------------------------------
+    // Tree search code:
+    //
+
+    /**
+     * Computes the bound specified in the monte carlo algorithm. In-flight simulations through the node 
+     * (its virtual loss) count as games lost by the player choosing it. With a RAVE equivalence parameter 
+     * above 0 the average is blended with the node's AMAF average.
+     */
+    private static double computeUCB(Node node, int parentSimulations, int multiplier, double exploration, int raveEquivalence){
+        int virtualLoss = node.virtualLoss;
+        int games = node.totalGames + virtualLoss;
+        if(games == 0) 
+            return Double.POSITIVE_INFINITY;
+        double average = (node.utilitySum * multiplier - virtualLoss) / games;
+        if(raveEquivalence > 0 && node.raveGames > 0) {
+            double beta = Math.sqrt(raveEquivalence / (3.0 * games + raveEquivalence));
+            average = (1 - beta) * average + beta * node.raveUtility * multiplier / node.raveGames;
+        }
+        return average + 2 * exploration * Math.sqrt(2.0 * Math.log(parentSimulations) / games);
+    }
+
+    /**
+     * Take the argmax over the children of a node, skipping proven children: there's nothing left to learn 
+     * about them. Returns the child's index for Node.childAt/actionAt, or -1 if they're all proven.
+     * @param parentSimulations - # simulations run by the parent node
+     * @param multiplier - +1/-1, depending on whether MIN or MAX is playing
+     */
+    private int argmax(Node parent, int parentSimulations, int multiplier, double exploration){
+        int best = -1;
+        double bestStat = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < parent.childCount; i++) {
+            Node child = parent.childAt(i);
+            if(child.isProven())
+                continue;
+            double temp = computeUCB(child, parentSimulations, multiplier, exploration, raveEquivalence);
+            if(best == -1 || temp > bestStat) {
+                best = i;
+                bestStat = temp;
+            }
+        }    
+        return best;
+    }
+
+    /**
+     * Run one simulation through node (the root's child for action, already carrying a virtual loss for it): 
+     * descend the tree until hitting a node that isn't fully expanded, expand a random child of it, 
+     * play that out, and back the result up.
+     */
+    private void runSimulation(SearchTree tree, Node root, int action, Node node, QuartoBoard scratch, Amaf amaf, SearchRandom random){
+        QuartoBoard position = enter(root, action, node, scratch);
+        if(amaf != null)
+            amaf.clear();
+        int utility = playGame(tree, node, position, amaf, random);
+        leave(root, action, node, scratch);
+        if(amaf != null) {
+            synchronized(root) {
+                amaf.add(root, action);
+                updateAmaf(root, amaf, utility);
+            }
+        }
+    }
+
+    /**
+     * The board of child, node's child for action. Without lazy boards that's just child.board. With them, 
+     * it's position (node's board) with the action played on it, until leave takes it back. 
+     */
+    private static QuartoBoard enter(Node node, int action, Node child, QuartoBoard position) {
+        if(!Node.lazyBoards)
+            return child.board;
+        if(placesPiece(node, child))
+            position.boardSet(action, node.parentActionPieceID);
+        return position;
+    }
+
+    private static void leave(Node node, int action, Node child, QuartoBoard position) {
+        if(Node.lazyBoards && placesPiece(node, child))
+            position.undoMove(action);
+    }
+
+    /**
+     * Does going from node to child put a piece on the board? (Not if the game ends there.)
+     */
+    private static boolean placesPiece(Node node, Node child) {
+        return (node instanceof MaxMoveNode || node instanceof MinMoveNode) && !(child instanceof TerminatingNode);
+    }
+
+    /**
+     * Descend from node, which the caller has selected (and given a virtual loss), and whose board is position. 
+     * Returns the summed utility of the simulation (playoutsPerLeaf games), after adding it to node's statistics 
+     * and removing node's virtual loss.
+     */
+    private int playGame(SearchTree tree, Node node, QuartoBoard position, Amaf amaf, SearchRandom random) {
+        Node child;
+        int action;
+        QuartoBoard childPosition;
+        boolean leaf;
+        int utility;
+        synchronized(node) {
+            int i = -1;
+            leaf = false;
+            if(!node.isProven()) {
+                leaf = widens(node);
+                // If every child is proven, so is this node; if only the ones it has so far, it gets another.
+                if(!leaf && (i = argmax(node, node.totalGames, node.isMax() ? 1 : -1, optimalParameter)) == -1)
+                    leaf = !node.proveFromChildren();
+            }
+            if(node.isProven()) {
+                // Nothing to search: the outcome is known.
+                utility = playoutsPerLeaf * node.proven;
+                node.utilitySum += utility;
+                node.totalGames += playoutsPerLeaf;
+                node.removeVirtualLoss();
+                return utility;
+            }
+            if(leaf) {
+                // Expand a random child (or the best one, with progressive widening). Run a simulation on it. 
+                child = widening > 0 ? node.expandBest(position, random) : node.expandRandom(position, random);
+                // The new child's own fields still give its (correct) action.
+                action = node.childAction(child);
+                childPosition = enter(node, action, child, position);
+                if(transpositions != null && !(child instanceof TerminatingNode)) {
+                    // Link in the position's node instead.
+                    Node shared = transpositions.share(child, childPosition);
+                    if(shared != child)
+                        node.replaceChild(action, shared);
+                    else
+                        tree.nodes.incrementAndGet();
+                    child = shared;
+                    if(!Node.lazyBoards)
+                        childPosition = child.board;
+                } else {
+                    tree.nodes.incrementAndGet();
+                }
+            } else {
+                child = node.childAt(i);
+                action = node.actionAt(i);
+                childPosition = enter(node, action, child, position);
+            }
+            child.addVirtualLoss();
+        }
+
+        if(leaf) {
+            if(probePlies > 0 && child.totalGames == 0 && !child.isProven())
+                probe(child, childPosition);
+            if(child.isProven()) {
+                utility = playoutsPerLeaf * child.proven;
+            } else {
+                utility = playouts(child, childPosition, random);
+                if(amaf != null && playoutsPerLeaf == 1)
+                    amaf.addPlayout(MonteCarloBoardSimulation.current());
+            }
+            synchronized(child) {
+                child.utilitySum += utility;
+                child.totalGames += playoutsPerLeaf;
+                child.removeVirtualLoss();
+            }
+        } else {
+            utility = playGame(tree, child, childPosition, amaf, random);
+        }
+        leave(node, action, child, position);
+
+        synchronized(node) {
+            node.utilitySum += utility;
+            node.totalGames += playoutsPerLeaf;
+            node.removeVirtualLoss();
+            if(child.isProven())
+                node.proveFromChildren();
+            if(amaf != null) {
+                amaf.add(node, action);
+                updateAmaf(node, amaf, utility);
+            }
+        }
+        return utility;
+    }
+
+    /**
+     * Should node get another child on this visit? Always, as long as it has unexpanded actions, unless 
+     * progressive widening limits it to fewer children for now.
+     */
+    private boolean widens(Node node) {
+        if(node.isExpanded())
+            return false;
+        if(widening <= 0)
+            return true;
+        return node.childCount < WIDENING_BASE * Math.pow(node.totalGames / playoutsPerLeaf + 1, widening);
+    }
+
+    /**
+     * Credit utility to the AMAF statistics of every child of node whose action the player to act at node 
+     * made somewhere in the simulation (amaf, from node down). Called with node's lock held.
+     */
+    private void updateAmaf(Node node, Amaf amaf, int utility) {
+        if(node.children == null)
+            return;
+        for(int actions = amaf.actions(node); actions != 0; actions &= actions - 1) {
+            Node child = node.getChild(Integer.numberOfTrailingZeros(actions));
+            if(child != null) {
+                child.raveGames += playoutsPerLeaf;
+                child.raveUtility += utility;
+            }
+        }
+    }
+
+    /**
+     * The actions of one simulation from some node down: masks of the pieces handed over and the cells filled, 
+     * by MAX and by MIN.
+     */
+    private static final class Amaf {
+        private static final int MAX_PIECES = 0;
+        private static final int MAX_CELLS = 1;
+        private static final int MIN_PIECES = 2;
+        private static final int MIN_CELLS = 3;
+        private final int[] masks = new int[4];
+
+        void clear() {
+            Arrays.fill(masks, 0);
+        }
+
+        /**
+         * Add what the engine's last playout did.
+         */
+        void addPlayout(MonteCarloBoardSimulation playout) {
+            masks[MAX_PIECES] |= playout.maxPieces;
+            masks[MAX_CELLS] |= playout.maxCells;
+            masks[MIN_PIECES] |= playout.minPieces;
+            masks[MIN_CELLS] |= playout.minCells;
+        }
+
+        /**
+         * Add node's action, the piece or cell leading to its child.
+         */
+        void add(Node node, int action) {
+            masks[kind(node)] |= 1 << action;
+        }
+
+        /**
+         * The actions of the kind node's children stand for, made by the player to act at node.
+         */
+        int actions(Node node) {
+            return masks[kind(node)];
+        }
+
+        private static int kind(Node node) {
+            boolean moveNode = node instanceof MaxMoveNode || node instanceof MinMoveNode;
+            if(node.isMax())
+                return moveNode ? MAX_CELLS : MAX_PIECES;
+            return moveNode ? MIN_CELLS : MIN_PIECES;
+        }
+    }
+
+    /**
+     * Prove the new leaf with an alpha-beta probe, if it's in the hybrid search's range and that works.
+     */
+    private void probe(Node leaf, QuartoBoard position) {
+        if(position.spacesLeft < SearchConfig.HYBRID_MIN_EMPTY || position.spacesLeft > SearchConfig.HYBRID_MAX_EMPTY)
+            return;
+        boolean moveNode = leaf instanceof MaxMoveNode || leaf instanceof MinMoveNode;
+        int value = AlphaBetaSearch.probe(position, leaf.isMax(), moveNode ? leaf.parentActionPieceID : -1, probePlies);
+        if(value != Node.UNPROVEN) {
+            synchronized(leaf) {
+                leaf.proven = value;
+            }
+        }
+    }
+
+    /**
+     * Play the leaf out playoutsPerLeaf times, and return the summed utility.
+     */
+    private int playouts(Node leaf, QuartoBoard position, SearchRandom random) {
+        if(playoutsPerLeaf == 1)
+            return MonteCarloBoardSimulation.playGameToFinish(leaf, position, random);
+        if(leaf instanceof TerminatingNode)
+            return playoutsPerLeaf * ((TerminatingNode)leaf).value;
+        PackedPosition packed = PackedPosition.of(position);
+        return playoutPool.invoke(new PlayoutBatch(leaf, packed.lo, packed.hi, playoutsPerLeaf));
+    }
+
+    /**
+     * A batch of playouts from the same leaf, split in halves until the pieces fit in one lockstep batch 
+     * (see BatchPlayoutEngine) on one thread. Each pool thread uses its own SearchRandom and engine.
+     *
+     * The leaf's position goes to the pool threads packed (see PackedPosition): two longs every thread 
+     * unpacks onto its own engine's board, instead of a board the worker owns (with lazy boards, its scratch 
+     * board, which it changes again as soon as the batch is done).
+     */
+    private static final class PlayoutBatch extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        private static final int SEQUENTIAL_PLAYOUTS = SearchConfig.BATCH_LANES;
+        private final Node leaf;
+        private final long lo;
+        private final long hi;
+        private final int count;
+
+        PlayoutBatch(Node leaf, long lo, long hi, int count) {
+            this.leaf = leaf;
+            this.lo = lo;
+            this.hi = hi;
+            this.count = count;
+        }
+
+        @Override
+        protected Integer compute() {
+            if(count <= SEQUENTIAL_PLAYOUTS) {
+                return MonteCarloBoardSimulation.playGamesToFinish(leaf, lo, hi, count, SearchRandom.current());
+            }
+            PlayoutBatch first = new PlayoutBatch(leaf, lo, hi, count / 2);
+            first.fork();
+            int second = new PlayoutBatch(leaf, lo, hi, count - count / 2).compute();
+            return first.join() + second;
+        }
+    }
+
+}
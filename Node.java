@@ -1,42 +1,106 @@
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 abstract class Node implements Iterable<Node> {
-	public static int iterations = 20;
-	public Map<Integer, Node> children;
+	/**
+	 * Children indexed directly by their action: the cell for a move node (numberOfCells slots), the piece for 
+	 * a choose node (numberOfPieces slots); null where there's no child yet. expanded[0 .. childCount - 1] are 
+	 * the actions that do have a child, in the order they were added, so walking the children doesn't have to 
+	 * look at every slot. Both arrays are only allocated when the first child is added (most nodes are leaves 
+	 * that never get one), and are null again once a move node is solved or the node's children are cleared.
+	 */
+	public Node[] children;
+	public byte[] expanded;
+	public int childCount;
+	// Length of children once it's allocated.
+	private byte slots;
 	public Node parent;
 	public QuartoBoard board;
 	public int totalGames;
 	public double utilitySum;
+	/**
+	 * All-moves-as-first statistics (RAVE): simulations through the parent in which the player to act there 
+	 * made this node's action at any point later on, and the sum of their utilities. Kept under the parent's lock.
+	 */
+	public int raveGames;
+	public double raveUtility;
+	/**
+	 * Simulations currently running through this node that haven't been backed up yet (tree-parallel search). 
+	 * Selection adds it under the parent's lock and backup removes it under the node's own, and a shared node 
+	 * has several parents, so it's only changed atomically (addVirtualLoss/removeVirtualLoss).
+	 */
+	public volatile int virtualLoss;
+	private static final AtomicIntegerFieldUpdater<Node> VIRTUAL_LOSS = AtomicIntegerFieldUpdater.newUpdater(Node.class, "virtualLoss");
 	public boolean solved;
 	public Node solvedNode;
+	/**
+	 * The value of the game for MAX (1, 0 or -1) from this node on, once the search has proven it (MCTS-Solver); 
+	 * UNPROVEN until then. Terminal and solved nodes are proven right away, the others by proveFromChildren.
+	 */
+	public int proven = UNPROVEN;
+	public static final int UNPROVEN = Integer.MIN_VALUE;
 	public byte parentActionCell;
 	public byte parentActionPieceID;
+	/**
+	 * Mask of the actions that don't have a child yet: empty cells for a move node, unplayed pieces for a 
+	 * choose node. Expanding a random child picks a random set bit of it.
+	 */
+	public int unexpanded;
+	/**
+	 * Last pass over the tree that saw this node (see MonteCarloTreeSearch), so passes over a DAG visit it once.
+	 */
+	public int mark;
 
 	public Node() {
 		utilitySum = 0;
 		totalGames = 0;
 		solved = false;
 		solvedNode = null;
-		children = new HashMap<Integer, Node>();	
 	}
 
-	public Node(QuartoBoard board) {
+	public Node(QuartoBoard board, int slots) {
 		utilitySum = 0;
 		totalGames = 0;
-		children = new HashMap<Integer, Node>();	
+		this.slots = (byte)slots;
 		solved = false;
 		solvedNode = null;
 		this.board = board;
 	}
 
 	/**
-	 * Expand a random node that hasn't been discovered yet.
+	 * Nodes below the search root don't keep a board with lazy boards (SearchConfig.LAZY_BOARDS): the search 
+	 * plays the actions on its way down onto a scratch board instead, and passes that to the methods taking 
+	 * a position. Without, every node has its own copy and position is just board.
+	 */
+	protected static final boolean lazyBoards = SearchConfig.LAZY_BOARDS;
+
+	/**
+	 * Expand a random node that hasn't been discovered yet. position is the board of this node.
 	 */
-	public abstract Node expandRandom();
+	public abstract Node expandRandom(QuartoBoard position, SearchRandom random);
+
+	public Node expandRandom(SearchRandom random) {
+		return expandRandom(board, random);
+	}
 	/**
-	 * Retrieve a child if it exists; otherwise create it and return the newly created instance
+	 * Expand the node that hasn't been discovered yet with the best prior, ties broken at random (for 
+	 * progressive widening, which only adds children one by one as the node gets visited). For a choose 
+	 * node the pieces that are safe to hand over come first; for a move node the cells leaving the 
+	 * most safe pieces to hand over afterwards (a move node that can win is already solved, by its parent 
+	 * when it's created or by expand at the root). position is the board of this node.
 	 */
-	public abstract Node getOrCreateChild(int cell, int pieceID);
+	public Node expandBest(QuartoBoard position, SearchRandom random) {
+		return expandRandom(position, random);
+	}
+	/**
+	 * Retrieve a child if it exists; otherwise create it and return the newly created instance. position 
+	 * is the board of this node.
+	 */
+	public abstract Node getOrCreateChild(QuartoBoard position, int cell, int pieceID);
+
+	public Node getOrCreateChild(int cell, int pieceID) {
+		return getOrCreateChild(board, cell, pieceID);
+	}
 	/**
 	 * Check if a node is fully expanded, or if it has remaining possible children
 	 */
@@ -50,16 +114,157 @@ abstract class Node implements Iterable<Node> {
 	 */
 	public abstract boolean isMax();
 
-	public abstract int maxChildren();
+	public int maxChildren() {
+		return childCount + Integer.bitCount(unexpanded);
+	}
+
+	/**
+	 * The unexpanded cell of a move node with the best prior (see expandBest).
+	 */
+	protected int bestCell(QuartoBoard position, SearchRandom random) {
+		int best = 0;
+		int bestSafe = -1;
+		for(int cells = unexpanded; cells != 0; cells &= cells - 1) {
+			int cell = Integer.numberOfTrailingZeros(cells);
+			int safe = Integer.bitCount(position.safePiecesAfter(cell, parentActionPieceID));
+			if(safe > bestSafe) {
+				best = 0;
+				bestSafe = safe;
+			}
+			if(safe == bestSafe)
+				best |= 1 << cell;
+		}
+		return QuartoBoard.randomSetBit(best, random);
+	}
+
+	/**
+	 * Zobrist key of the game state this node represents (board, side to act and phase), given its board. 
+	 */
+	public abstract long positionKey(QuartoBoard position);
+
+	public long positionKey() {
+		return positionKey(board);
+	}
+
+	public void addVirtualLoss() {
+		VIRTUAL_LOSS.incrementAndGet(this);
+	}
+
+	public void removeVirtualLoss() {
+		VIRTUAL_LOSS.decrementAndGet(this);
+	}
+
+	public boolean isProven() {
+		return proven != UNPROVEN;
+	}
+
+	/**
+	 * Prove this node from its children if possible: it's won for the player to act as soon as one child is won 
+	 * for them, and otherwise it's worth the best of its children once they all exist and are all proven. 
+	 * Returns whether the node is proven now.
+	 */
+	public boolean proveFromChildren() {
+		if(proven != UNPROVEN || children == null)
+			return proven != UNPROVEN;
+		int sign = isMax() ? 1 : -1;
+		int best = UNPROVEN;
+		boolean all = unexpanded == 0;
+		for(int i = 0; i < childCount; i++) {
+			int value = childAt(i).proven;
+			if(value == UNPROVEN) {
+				all = false;
+			} else if(value == sign) {
+				proven = value;
+				return true;
+			} else if(best == UNPROVEN || value * sign > best * sign) {
+				best = value;
+			}
+		}
+		if(all && best != UNPROVEN)
+			proven = best;
+		return proven != UNPROVEN;
+	}
+
+	/**
+	 * Safe-piece pruning for a choose node, given the pieces that are safe to hand over on its board: a piece 
+	 * that lets the opponent win right away is never better than a safe one, so as long as there is a safe 
+	 * piece only those are left to expand. If there is none, every piece loses, and the node is proven lost 
+	 * for the player to act (its pieces stay, so there's still one to pick).
+	 */
+	protected void keepSafePieces(int safe) {
+		if((unexpanded & safe) != 0)
+			unexpanded &= safe;
+		else
+			proven = isMax() ? -1 : 1;
+	}
+
+	/**
+	 * Mark this move node solved: the player to act wins with sureThing, so that's all that's left of its children.
+	 */
+	protected void solve(TerminatingNode sureThing) {
+		solved = true;
+		children = null;
+		expanded = null;
+		childCount = 0;
+		solvedNode = sureThing;
+		utilitySum = sureThing.value * totalGames;
+		proven = sureThing.value;
+	}
+
+	/**
+	 * The action (cell for a move node, piece for a choose node) that leads from this node to child. 
+	 */
+	protected abstract int childAction(Node child);
 
 	public void addChild(Node child) {
-		assert !children.containsKey(child.hashCode());
-		children.put(child.hashCode(), child);
+		int action = childAction(child);
+		if(children == null) {
+			children = new Node[slots];
+			expanded = new byte[slots];
+		}
+		assert children[action] == null;
+		children[action] = child;
+		expanded[childCount++] = (byte)action;
 		child.parent = this;
+		unexpanded &= ~(1 << action);
 	}
 
+	/**
+	 * Drop all children, and so the subtrees below them. Their actions become unexpanded again; this node's 
+	 * own statistics stay as they are.
+	 */
 	public void clearChildren(){
-		children.clear();
+		for(int i = 0; i < childCount; i++)
+			unexpanded |= 1 << expanded[i];
+		children = null;
+		expanded = null;
+		childCount = 0;
+	}
+
+	/**
+	 * The child for an action (cell or piece, see children), or null (also when this node can't have children).
+	 */
+	public Node getChild(int action) {
+		return children == null ? null : children[action];
+	}
+
+	/**
+	 * The i'th child that was added, and its action.
+	 */
+	public Node childAt(int i) {
+		return children[expanded[i]];
+	}
+
+	public int actionAt(int i) {
+		return expanded[i];
+	}
+
+	/**
+	 * Put another node in the place of an existing child.
+	 */
+	public void replaceChild(int action, Node child) {
+		assert children[action] != null;
+		children[action] = child;
 	}
 
 	/**
@@ -67,11 +272,10 @@ abstract class Node implements Iterable<Node> {
 	 * keep statistics accurate.
 	 */
 	public void addChildIfNotExist(Node child) {
-		if(children.containsKey(child.hashCode()))
+		if(getChild(childAction(child)) != null)
 			return;
 
-		children.put(child.hashCode(), child);
-		child.parent = this;
+		addChild(child);
 	}
 		
 	public static int Hash(int cell, int pieceID){
@@ -103,11 +307,11 @@ abstract class Node implements Iterable<Node> {
 		int count = 0;
 
 		if(children != null){
-			for(Node n : children.values()){
-				n.printPretty(indent, count == children.size() - 1, depth - 1);
+			for(int i = 0; i < childCount; i++){
+				childAt(i).printPretty(indent, count == childCount - 1, depth - 1);
 				count++;
 			}
-		} else {
+		} else if(solvedNode != null) {
 			solvedNode.printPretty(indent, true, depth - 1);
 			count++;
 		}
@@ -118,8 +322,16 @@ abstract class Node implements Iterable<Node> {
 class MinMoveNode extends Node {
 
 	public MinMoveNode(QuartoBoard board, int pieceID) {
-		super(board);
+		this(board, pieceID, board.emptyCells());
+	}
+
+	/**
+	 * A node on a board with the given empty cells, that only keeps board if it's not null. 
+	 */
+	public MinMoveNode(QuartoBoard board, int pieceID, int emptyCells) {
+		super(board, QuartoBoard.numberOfCells);
 		this.parentActionPieceID = (byte)pieceID;
+		this.unexpanded = emptyCells;
 	}
 
 	@Override
@@ -132,42 +344,37 @@ class MinMoveNode extends Node {
 	public boolean expand() {
 		if(!isExpanded()) {
 			Node sureThing = null;
-            for(int i = 0; i < QuartoBoard.numberOfCells; i++){
-                if(board.board[i] == -1) {
-                    QuartoBoard copy = new QuartoBoard(board);
-                    int result = copy.moveAndTestUtility(-1, i, parentActionPieceID);
-					if(result != Integer.MAX_VALUE) {
-						if(result == -1){
-							sureThing = new TerminatingNode(i, parentActionPieceID, result);
-							break;
-						}		
-						addChildIfNotExist(new TerminatingNode(i, parentActionPieceID, result));
-					} else {
-						addChildIfNotExist(new MinChooseNode(copy, i, parentActionPieceID));
-					}					
-                }
+            for(int cells = unexpanded; cells != 0; cells &= cells - 1){
+                int i = Integer.numberOfTrailingZeros(cells);
+                QuartoBoard copy = new QuartoBoard(board);
+                int result = copy.moveAndTestUtility(-1, i, parentActionPieceID);
+				if(result != Integer.MAX_VALUE) {
+					if(result == -1){
+						sureThing = new TerminatingNode(i, parentActionPieceID, result);
+						break;
+					}		
+					addChildIfNotExist(new TerminatingNode(i, parentActionPieceID, result));
+				} else {
+					addChildIfNotExist(new MinChooseNode(copy, i, parentActionPieceID));
+				}					
 			}
 			if(sureThing != null){
-				solved = true;
-				children = null;
-				solvedNode = sureThing;
-				utilitySum = ((TerminatingNode)sureThing).value * totalGames;
+				solve((TerminatingNode)sureThing);
 			}
 		}
 		return false;
 	}
 
 	@Override 
-	public Node getOrCreateChild(int cell, int pieceID){
+	public Node getOrCreateChild(QuartoBoard position, int cell, int pieceID){
 		// To minimize the potential for dumb, whenever we see a move that's a sure win for the player,
 		// we just take it. Always. No randomness involved.
 		if(solved) {
 			return solvedNode;
 		}
 
-		Integer hash = Hash(cell, pieceID);
-		if(children.containsKey(hash)){
-			return children.get(hash);
+		if(getChild(cell) != null){
+			return getChild(cell);
 		} else {
 			// Create the child.
 			// Note that we want to cut off the game and insert a terminal node 
@@ -175,20 +382,18 @@ class MinMoveNode extends Node {
 			// Furthermore, we want to mark this node as 'solved' if there's a certain victory move for the player
 			// now available. After all, under minimax, they'd never take anything else.
 			Node child;
-			QuartoBoard copy = new QuartoBoard(board);
-			int result = copy.moveAndTestUtility(-1, cell, parentActionPieceID);
-			if(result != Integer.MAX_VALUE) {
-				if(result == -1){
-					solved = true;
-					children = null;
-					solvedNode = new TerminatingNode(cell, parentActionPieceID, result);
-					utilitySum = ((TerminatingNode)solvedNode).value * totalGames;
-					return solvedNode;
-				} else {
-					child = new TerminatingNode(cell, parentActionPieceID, result);	
-				}	
+			if(position.doesMoveWin(cell, parentActionPieceID)) {
+				solve(new TerminatingNode(cell, parentActionPieceID, -1));
+				return solvedNode;
+			} else if(position.spacesLeft == 1) {
+				child = new TerminatingNode(cell, parentActionPieceID, 0);	
+			} else if(lazyBoards) {
+				child = new MinChooseNode(null, cell, parentActionPieceID, position.remainingPieces() & ~(1 << parentActionPieceID));
+				child.keepSafePieces(position.safePiecesAfter(cell, parentActionPieceID));
 			} else {
-				child = (new MinChooseNode(copy, cell, parentActionPieceID));
+				QuartoBoard copy = new QuartoBoard(position);
+				copy.boardSet(cell, parentActionPieceID);
+				child = new MinChooseNode(copy, cell, parentActionPieceID);
 			}
 			addChild(child);
 			return child;		
@@ -196,48 +401,39 @@ class MinMoveNode extends Node {
 	}
 
 	@Override 
-	public Node expandRandom(){
+	public Node expandRandom(QuartoBoard position, SearchRandom random){
 		// No need for further expansion if solved.
 		if(solved) {
 			return solvedNode;
 		}
 
-		// Try some random guesses, hoping we get lucky.
-		for(int i = 0; i < iterations; i++){
-			int cell = (int)(Math.random() * QuartoBoard.numberOfCells);
-			if(board.board[cell] == -1){
-				Integer hash = Hash(cell, parentActionPieceID);
-				if(!children.containsKey(hash)){
-					// Success
-					Node result = getOrCreateChild(cell, parentActionPieceID);
-					return result;
-				}
-			} 
-		}
+		return getOrCreateChild(position, QuartoBoard.randomSetBit(unexpanded, random), parentActionPieceID);
+	}
 
-		// RNG was not kind to us, just return the first thing we see. 
-		for(int i = 0; i < QuartoBoard.numberOfCells; i++) {
-            if(board.board[i] == -1) {
-				Integer hash = Hash(i, parentActionPieceID);
-				if(!children.containsKey(hash)){
-					//Success
-					Node result = getOrCreateChild(i, parentActionPieceID);
-					return result;
-				}	
-			}
+	@Override 
+	public Node expandBest(QuartoBoard position, SearchRandom random){
+		if(solved) {
+			return solvedNode;
 		}
-		
-		throw new RuntimeException();
+
+		return getOrCreateChild(position, bestCell(position, random), parentActionPieceID);
 	}
 
 	@Override
 	public boolean isExpanded() {
-		return solved || maxChildren() == children.size(); 
+		return solved || unexpanded == 0; 
 	}
 
+
 	@Override
-	public int maxChildren() {
-		return board.numberOfMovesRemaining();
+	public long positionKey(QuartoBoard position) {
+		// MIN places the piece MAX handed over.
+		return position.positionKey(false, parentActionPieceID);
+	}
+
+	@Override
+	protected int childAction(Node child) {
+		return child.parentActionCell;
 	}
 
 	@Override
@@ -288,8 +484,16 @@ class MinMoveNode extends Node {
 class MaxMoveNode extends Node {
 	
 	public MaxMoveNode(QuartoBoard board, int pieceID) {
-		super(board);
+		this(board, pieceID, board.emptyCells());
+	}
+
+	/**
+	 * A node on a board with the given empty cells, that only keeps board if it's not null. 
+	 */
+	public MaxMoveNode(QuartoBoard board, int pieceID, int emptyCells) {
+		super(board, QuartoBoard.numberOfCells);
 		this.parentActionPieceID = (byte)pieceID;
+		this.unexpanded = emptyCells;
 	}
 
 	@Override
@@ -302,27 +506,23 @@ class MaxMoveNode extends Node {
 		if(!isExpanded()) {
 			Node sureThing = null;
 
-			for(int i = 0; i < QuartoBoard.numberOfCells; i++){
-                if(board.board[i] == -1) {
-                    QuartoBoard copy = new QuartoBoard(board);
-                    int result = copy.moveAndTestUtility(1, i, parentActionPieceID);
-					if(result != Integer.MAX_VALUE) {
-						if(result == 1){
-							sureThing = new TerminatingNode(i, parentActionPieceID, result);					
-							break;
-						}		
-						addChildIfNotExist(new TerminatingNode(i, parentActionPieceID, result));
-						
-					} else {
-						addChildIfNotExist(new MaxChooseNode(copy, i, parentActionPieceID));
-					}					
-                }
+			for(int cells = unexpanded; cells != 0; cells &= cells - 1){
+                int i = Integer.numberOfTrailingZeros(cells);
+                QuartoBoard copy = new QuartoBoard(board);
+                int result = copy.moveAndTestUtility(1, i, parentActionPieceID);
+				if(result != Integer.MAX_VALUE) {
+					if(result == 1){
+						sureThing = new TerminatingNode(i, parentActionPieceID, result);					
+						break;
+					}		
+					addChildIfNotExist(new TerminatingNode(i, parentActionPieceID, result));
+					
+				} else {
+					addChildIfNotExist(new MaxChooseNode(copy, i, parentActionPieceID));
+				}					
 			}
 			if(sureThing != null){
-				children = null;
-				solvedNode = sureThing;
-				solved = true;
-				utilitySum = ((TerminatingNode)sureThing).value * totalGames;
+				solve((TerminatingNode)sureThing);
 			}
 		}
 		return false;
@@ -330,16 +530,12 @@ class MaxMoveNode extends Node {
 
 	@Override
 	public boolean isExpanded() {
-		return solved || maxChildren() == children.size(); 
+		return solved || unexpanded == 0; 
 	}
 
-	@Override
-	public int maxChildren() {
-		return board.numberOfMovesRemaining();
-	}
 
 	@Override 
-	public Node getOrCreateChild(int cell, int pieceID){
+	public Node getOrCreateChild(QuartoBoard position, int cell, int pieceID){
 		// If we hit a 100% sure win or loss, then we mark this node as 'solved'
 		// and just return whatever that move was.
 		// This doesn't prevent the simulation from making stupid moves, 
@@ -349,25 +545,22 @@ class MaxMoveNode extends Node {
 			return solvedNode;
 		}
 
-		Integer hash = Hash(cell, pieceID);
-		if(children.containsKey(hash)){
-			return children.get(hash);
+		if(getChild(cell) != null){
+			return getChild(cell);
 		} else {
 			Node child;
-			QuartoBoard copy = new QuartoBoard(board);
-			int result = copy.moveAndTestUtility(1, cell, parentActionPieceID);
-			if(result != Integer.MAX_VALUE) {
-				if(result == 1){
-					solved = true;
-					children = null;
-					solvedNode = new TerminatingNode(cell, parentActionPieceID, result);
-					utilitySum = ((TerminatingNode)solvedNode).value * totalGames;					
-					return solvedNode;
-				} else {
-					child = new TerminatingNode(cell, parentActionPieceID, result);					
-				}
+			if(position.doesMoveWin(cell, parentActionPieceID)) {
+				solve(new TerminatingNode(cell, parentActionPieceID, 1));
+				return solvedNode;
+			} else if(position.spacesLeft == 1) {
+				child = new TerminatingNode(cell, parentActionPieceID, 0);					
+			} else if(lazyBoards) {
+				child = new MaxChooseNode(null, cell, parentActionPieceID, position.remainingPieces() & ~(1 << parentActionPieceID));
+				child.keepSafePieces(position.safePiecesAfter(cell, parentActionPieceID));
 			} else {
-				child = (new MaxChooseNode(copy, cell, parentActionPieceID));
+				QuartoBoard copy = new QuartoBoard(position);
+				copy.boardSet(cell, parentActionPieceID);
+				child = new MaxChooseNode(copy, cell, parentActionPieceID);
 			}
 			addChildIfNotExist(child);
 			return child;		
@@ -375,38 +568,32 @@ class MaxMoveNode extends Node {
 	}
 
 	@Override 
-	public Node expandRandom(){
-
+	public Node expandRandom(QuartoBoard position, SearchRandom random){
+		// No need for further expansion if solved.
 		if(solved) {
 			return solvedNode;
 		}
 
-		// Try some random moves
-		for(int i = 0; i < iterations; i++){
-			int cell = (int)(Math.random() * QuartoBoard.numberOfCells);
-			if(board.board[cell] == -1){
-				Integer hash = Hash(cell, parentActionPieceID);
-				if(!children.containsKey(hash)){
-					// Success
-					Node result = getOrCreateChild(cell, parentActionPieceID);
-					return result;
-				}
-			} 
-		}
+		return getOrCreateChild(position, QuartoBoard.randomSetBit(unexpanded, random), parentActionPieceID);
+	}
 
-		// Just make a move. Whatever's left.
-		for(int i = 0; i < QuartoBoard.numberOfCells; i++) {
-            if(board.board[i] == -1) {
-				Integer hash = Hash(i, parentActionPieceID);
-				if(!children.containsKey(hash)){
-					//Success
-					Node result = getOrCreateChild(i, parentActionPieceID);
-					return result;
-				}	
-			}
+	@Override 
+	public Node expandBest(QuartoBoard position, SearchRandom random){
+		if(solved) {
+			return solvedNode;
 		}
 
-		throw new RuntimeException();
+		return getOrCreateChild(position, bestCell(position, random), parentActionPieceID);
+	}
+
+	@Override
+	public long positionKey(QuartoBoard position) {
+		return position.positionKey(true, parentActionPieceID);
+	}
+
+	@Override
+	protected int childAction(Node child) {
+		return child.parentActionCell;
 	}
 
 	@Override
@@ -458,9 +645,19 @@ class MaxMoveNode extends Node {
 class MinChooseNode extends Node {
 
 	public MinChooseNode(QuartoBoard board, int cell, int pieceID) {
-		super(board);
+		this(board, cell, pieceID, board.remainingPieces());
+		keepSafePieces(board.safePieces());
+	}
+
+	/**
+	 * A node with the given pieces left to choose from (see keepSafePieces for pruning them), that only keeps 
+	 * board if it's not null.
+	 */
+	public MinChooseNode(QuartoBoard board, int cell, int pieceID, int remainingPieces) {
+		super(board, QuartoBoard.numberOfPieces);
 		this.parentActionCell = (byte)cell;
 		this.parentActionPieceID = (byte)pieceID;
+		this.unexpanded = remainingPieces;
 	}
 
 	@Override
@@ -472,10 +669,8 @@ class MinChooseNode extends Node {
 	@Override
 	public boolean expand() {
 		if(!isExpanded()){
-            for(int i = 0; i < QuartoBoard.numberOfPieces; i++){
-                if(!board.isPieceOnBoard(i)) {
-                    addChildIfNotExist(new MaxMoveNode(new QuartoBoard(board), i));
-                }
+            for(int remaining = unexpanded; remaining != 0; remaining &= remaining - 1){
+                getOrCreateChild(board, -1, Integer.numberOfTrailingZeros(remaining));
             }
 		}
 		return false;
@@ -483,57 +678,48 @@ class MinChooseNode extends Node {
 
 	@Override
 	public boolean isExpanded() {
-		return solved || maxChildren() == children.size(); 
+		return solved || unexpanded == 0; 
 	}
 
-	@Override
-	public int maxChildren() {
-		return board.numberOfPiecesRemaining();
-	}
 
 	@Override 
-	public Node expandRandom(){
-		// Try for a random move
-		for(int i = 0; i < iterations; i++){
-			int pieceId = (int)(Math.random() * QuartoBoard.numberOfPieces);
-			if(!board.isPieceOnBoard(pieceId)){
-				Integer hash = Hash(0, pieceId);
-				if(!children.containsKey(hash)){
-					// Success
-					Node result = getOrCreateChild(-1, pieceId);
-					return result;
-				}
-			} 
-		}
-
-		// Just return some move
-		for(int i = 0; i < QuartoBoard.numberOfPieces; i++) {
-            if(!board.isPieceOnBoard(i)) {
-				Integer hash = Hash(0, i);
-				if(!children.containsKey(hash)){
-					//Success
-					Node result = getOrCreateChild(-1, i);
-					return result;
-				}	
-			}
-		}
+	public Node expandRandom(QuartoBoard position, SearchRandom random){
+		return getOrCreateChild(position, -1, QuartoBoard.randomSetBit(unexpanded, random));
+	}
 
-		throw new RuntimeException();
+	@Override 
+	public Node expandBest(QuartoBoard position, SearchRandom random){
+		int safe = unexpanded & position.safePieces();
+		return getOrCreateChild(position, -1, QuartoBoard.randomSetBit(safe != 0 ? safe : unexpanded, random));
 	}
 
 	@Override 
-	public Node getOrCreateChild(int cell, int pieceID){
-		Integer hash = Hash(0, pieceID);
-		if(children.containsKey(hash)){
-			return children.get(hash);
+	public Node getOrCreateChild(QuartoBoard position, int cell, int pieceID){
+		if(getChild(pieceID) != null){
+			return getChild(pieceID);
 		} else {
 			Node child;
-			child = new MaxMoveNode(board, pieceID);	
+			child = new MaxMoveNode(lazyBoards ? null : board, pieceID, position.emptyCells());	
+			if(position.isPieceDeadly(pieceID)) {
+				// MAX wins by placing it, so the child is solved from the start.
+				child.solve(new TerminatingNode(position.findWinningCell(pieceID), pieceID, 1));
+			}
 			addChild(child);
 			return child;		
 		}
 	}
 	
+	@Override
+	public long positionKey(QuartoBoard position) {
+		// MAX just placed a piece, MIN picks one for MAX.
+		return position.positionKey(false, -1);
+	}
+
+	@Override
+	protected int childAction(Node child) {
+		return child.parentActionPieceID;
+	}
+
 	@Override
 	public boolean isMax(){
 		return false;
@@ -577,9 +763,19 @@ class MinChooseNode extends Node {
 class MaxChooseNode extends Node {
 
 	public MaxChooseNode(QuartoBoard board, int cell, int pieceID) {
-		super(board);
+		this(board, cell, pieceID, board.remainingPieces());
+		keepSafePieces(board.safePieces());
+	}
+
+	/**
+	 * A node with the given pieces left to choose from (see keepSafePieces for pruning them), that only keeps 
+	 * board if it's not null.
+	 */
+	public MaxChooseNode(QuartoBoard board, int cell, int pieceID, int remainingPieces) {
+		super(board, QuartoBoard.numberOfPieces);
 		this.parentActionCell = (byte)cell;
 		this.parentActionPieceID = (byte)pieceID;
+		this.unexpanded = remainingPieces;
 	}
 
 	@Override
@@ -590,10 +786,8 @@ class MaxChooseNode extends Node {
 	@Override
 	public boolean expand() {
 		if(!isExpanded()){
-            for(int i = 0; i < QuartoBoard.numberOfPieces; i++){
-                if(!board.isPieceOnBoard(i)) {
-                    addChild(new MinMoveNode(board, i));
-                }
+            for(int remaining = unexpanded; remaining != 0; remaining &= remaining - 1){
+                getOrCreateChild(board, -1, Integer.numberOfTrailingZeros(remaining));
             }
 		}
 		return false;
@@ -601,57 +795,47 @@ class MaxChooseNode extends Node {
 
 	@Override
 	public boolean isExpanded() {
-		return solved || maxChildren() == children.size(); 
+		return solved || unexpanded == 0; 
 	}
 
-	@Override
-	public int maxChildren() {
-		return board.numberOfPiecesRemaining();
-	}
 
 
 	@Override 
-	public Node expandRandom(){
-		// Try random pieces for a bit
-		for(int i = 0; i < iterations; i++){
-			int pieceId = (int)(Math.random() * QuartoBoard.numberOfPieces);
-			if(!board.isPieceOnBoard(pieceId)){
-				Integer hash = Hash(0, pieceId);
-				if(!children.containsKey(hash)){
-					// Success
-					Node result = getOrCreateChild(-1, pieceId);
-					return result;
-				}
-			} 
-		}
-
-		// Just return something. It probably doesn't matter much if we've failed this many times.
-		for(int i = 0; i < QuartoBoard.numberOfPieces; i++) {
-            if(!board.isPieceOnBoard(i)) {
-				Integer hash = Hash(0, i);
-				if(!children.containsKey(hash)){
-					//Success
-					Node result = getOrCreateChild(-1, i);
-					return result;
-				}	
-			}
-		}
+	public Node expandRandom(QuartoBoard position, SearchRandom random){
+		return getOrCreateChild(position, -1, QuartoBoard.randomSetBit(unexpanded, random));
+	}
 
-		throw new RuntimeException();
+	@Override 
+	public Node expandBest(QuartoBoard position, SearchRandom random){
+		int safe = unexpanded & position.safePieces();
+		return getOrCreateChild(position, -1, QuartoBoard.randomSetBit(safe != 0 ? safe : unexpanded, random));
 	}
 
 	@Override 
-	public Node getOrCreateChild(int cell, int pieceID){
-		Integer hash = Hash(0, pieceID);
-		if(children.containsKey(hash)){
-			return children.get(hash);
+	public Node getOrCreateChild(QuartoBoard position, int cell, int pieceID){
+		if(getChild(pieceID) != null){
+			return getChild(pieceID);
 		} else {
-			Node child = new MinMoveNode(new QuartoBoard(board), pieceID);	
+			Node child = new MinMoveNode(lazyBoards ? null : new QuartoBoard(position), pieceID, position.emptyCells());	
+			if(position.isPieceDeadly(pieceID)) {
+				// MIN wins by placing it, so the child is solved from the start.
+				child.solve(new TerminatingNode(position.findWinningCell(pieceID), pieceID, -1));
+			}
 			addChild(child);
 			return child;		
 		}
 	}
 
+	@Override
+	public long positionKey(QuartoBoard position) {
+		return position.positionKey(true, -1);
+	}
+
+	@Override
+	protected int childAction(Node child) {
+		return child.parentActionPieceID;
+	}
+
 	@Override
 	public boolean isMax(){
 		return true;
@@ -697,6 +881,7 @@ class TerminatingNode extends Node {
 		this.parentActionCell = (byte)cell;
 		this.parentActionPieceID = (byte)pieceID;
 		this.value = value;	
+		this.proven = value;
 		this.utilitySum = value;
 		this.totalGames = 1;
 	}
@@ -722,10 +907,20 @@ class TerminatingNode extends Node {
 	}
 
 	@Override
-	public Node getOrCreateChild(int cell, int pieceID){
+	public Node getOrCreateChild(QuartoBoard position, int cell, int pieceID){
 		throw new RuntimeException("Cannot have a child");
 	}
 
+	@Override
+	public long positionKey(QuartoBoard position) {
+		throw new RuntimeException("A terminal node has no position");
+	}
+
+	@Override
+	protected int childAction(Node child) {
+		throw new RuntimeException("terminal node cannot have children.");
+	}
+
 	@Override
 	public boolean isMax(){
 		return true;
@@ -737,7 +932,7 @@ class TerminatingNode extends Node {
 	}
 
 	@Override 
-	public Node expandRandom(){
+	public Node expandRandom(QuartoBoard position, SearchRandom random){
 		throw new RuntimeException("Cannot expand a terminal node.");
 	}
 
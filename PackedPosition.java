@@ -0,0 +1,195 @@
+/**
+ * An immutable board position packed into two longs (16 bytes), for nodes and table entries that want to hold 
+ * a position without a QuartoBoard object and its byte[25] behind it. The static methods work directly on a 
+ * (lo, hi) pair, so a class can store the two longs as plain fields and never allocate a PackedPosition at all.
+ *
+ * 25 cells x 5 bits already take 125 of the 128 bits, so there's no room for a separate occupancy mask. Instead 
+ * we use the remaining 3 bits as a header and store only what's needed. Treating (lo, hi) as one 128 bit 
+ * stream (lo is bits 0-63):
+ *    header 7 (at most 20 pieces on the board): 
+ *        bits 3-27 occupancy mask, then 5 bits per piece on the board, in cell order. 
+ *    header e in [0, 4] (at least 21 pieces on the board, so e empty cells): 
+ *        5 bits per empty cell, in cell order, then 5 bits per piece on the board, in cell order.
+ * Both layouts use at most 128 bits. The remaining pieces aren't stored; they're derived from the placed ones.
+ *
+ * The tree search hands leaf positions to the threads of a leaf-playout batch this way (see 
+ * MonteCarloTreeSearch), and they play them out with MonteCarloBoardSimulation.playGamesToFinish.
+ */
+public final class PackedPosition {
+	private static final int HEADER_BITS = 3;
+	private static final int SPARSE = 7;
+	private static final int MAX_SPARSE_PIECES = 20;
+	private static final int SPARSE_PIECES_OFFSET = HEADER_BITS + QuartoBoard.numberOfCells;
+
+	public final long lo;
+	public final long hi;
+
+	public PackedPosition(long lo, long hi) {
+		this.lo = lo;
+		this.hi = hi;
+	}
+
+	/**
+	 * Pack the pieces of a board. (Side to act and pending piece aren't part of it.)
+	 */
+	public static PackedPosition of(QuartoBoard board) {
+		long lo = 0;
+		long hi = 0;
+		int occupied = board.occupied;
+		int numberOfPieces = Integer.bitCount(occupied);
+		int offset;
+		if(numberOfPieces <= MAX_SPARSE_PIECES) {
+			lo = SPARSE | ((long)occupied << HEADER_BITS);
+			offset = SPARSE_PIECES_OFFSET;
+		} else {
+			int empty = ~occupied & QuartoBoard.FULL_BOARD;
+			lo = QuartoBoard.numberOfCells - numberOfPieces;
+			offset = HEADER_BITS;
+			for(; empty != 0; empty &= empty - 1, offset += 5)
+				lo |= (long)Integer.numberOfTrailingZeros(empty) << offset;
+		}
+		for(int cells = occupied; cells != 0; cells &= cells - 1, offset += 5) {
+			long pieceID = board.board[Integer.numberOfTrailingZeros(cells)];
+			if(offset < 64) {
+				lo |= pieceID << offset;
+				if(offset > 64 - 5)
+					hi |= pieceID >>> (64 - offset);
+			} else {
+				hi |= pieceID << (offset - 64);
+			}
+		}
+		return new PackedPosition(lo, hi);
+	}
+
+	public QuartoBoard toBoard() {
+		QuartoBoard board = new QuartoBoard((String)null);
+		toBoard(lo, hi, board);
+		return board;
+	}
+
+	/**
+	 * Unpack into an existing board (overwriting it), without allocating anything.
+	 */
+	public static void toBoard(long lo, long hi, QuartoBoard board) {
+		board.clear();
+		int occupied = occupied(lo, hi);
+		int offset = piecesOffset(lo);
+		for(int cells = occupied; cells != 0; cells &= cells - 1, offset += 5)
+			board.boardSet(Integer.numberOfTrailingZeros(cells), read5(lo, hi, offset));
+	}
+
+	private static int read5(long lo, long hi, int offset) {
+		if(offset >= 64)
+			return (int)(hi >>> (offset - 64)) & 0x1F;
+		if(offset <= 64 - 5)
+			return (int)(lo >>> offset) & 0x1F;
+		return (int)((lo >>> offset) | (hi << (64 - offset))) & 0x1F;
+	}
+
+	private static int piecesOffset(long lo) {
+		int header = (int)lo & SPARSE;
+		return header == SPARSE ? SPARSE_PIECES_OFFSET : HEADER_BITS + 5 * header;
+	}
+
+	/**
+	 * Bitboard of occupied cells (same layout as QuartoBoard.occupied).
+	 */
+	public static int occupied(long lo, long hi) {
+		int header = (int)lo & SPARSE;
+		if(header == SPARSE)
+			return (int)(lo >>> HEADER_BITS) & QuartoBoard.FULL_BOARD;
+		int occupied = QuartoBoard.FULL_BOARD;
+		for(int i = 0; i < header; i++)
+			occupied &= ~(1 << read5(lo, hi, HEADER_BITS + 5 * i));
+		return occupied;
+	}
+
+	/**
+	 * The piece on a cell, or -1 if it's empty.
+	 */
+	public static int pieceAt(long lo, long hi, int cell) {
+		return pieceAt(lo, hi, occupied(lo, hi), cell);
+	}
+
+	private static int pieceAt(long lo, long hi, int occupied, int cell) {
+		if((occupied & (1 << cell)) == 0)
+			return -1;
+		int index = Integer.bitCount(occupied & ((1 << cell) - 1));
+		return read5(lo, hi, piecesOffset(lo) + 5 * index);
+	}
+
+	public static int spacesLeft(long lo, long hi) {
+		return QuartoBoard.numberOfCells - Integer.bitCount(occupied(lo, hi));
+	}
+
+	/**
+	 * Pieces not yet played, as in QuartoBoard.pieces.
+	 */
+	public static int remainingPieces(long lo, long hi) {
+		int pieces = ~0;
+		int count = Integer.bitCount(occupied(lo, hi));
+		int offset = piecesOffset(lo);
+		for(int i = 0; i < count; i++, offset += 5)
+			pieces &= ~(1 << read5(lo, hi, offset));
+		return pieces;
+	}
+
+	/**
+	 * Same as QuartoBoard.doesMoveWin, read straight off the packed bits.
+	 */
+	public static boolean doesMoveWin(long lo, long hi, int cell, int pieceID) {
+		int occupied = occupied(lo, hi);
+		assert (occupied & (1 << cell)) == 0;
+		for(int line : QuartoBoard.CELL_LINES[cell]) {
+			int rest = QuartoBoard.LINE_MASKS[line] & ~(1 << cell);
+			if((occupied & rest) != rest)
+				continue;
+			int and = pieceID;
+			int or = pieceID;
+			for(int cells = rest; cells != 0; cells &= cells - 1) {
+				int other = pieceAt(lo, hi, occupied, Integer.numberOfTrailingZeros(cells));
+				and &= other;
+				or |= other;
+			}
+			if(and != 0 || or != 0x1F)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Same as QuartoBoard.deadlyPieces: every piece that completes a line currently holding 4 pieces.
+	 */
+	public static int deadlyPieces(long lo, long hi) {
+		int occupied = occupied(lo, hi);
+		int deadly = 0;
+		for(int line = 0; line < QuartoBoard.numberOfLines; line++) {
+			int cellsOnLine = QuartoBoard.LINE_MASKS[line] & occupied;
+			if(Integer.bitCount(cellsOnLine) != QuartoBoard.numberOfColumns - 1)
+				continue;
+			int and = 0x1F;
+			int or = 0;
+			for(int cells = cellsOnLine; cells != 0; cells &= cells - 1) {
+				int pieceID = pieceAt(lo, hi, occupied, Integer.numberOfTrailingZeros(cells));
+				and &= pieceID;
+				or |= pieceID;
+			}
+			deadly |= QuartoBoard.lineThreats(and, or);
+		}
+		return deadly;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof PackedPosition))
+			return false;
+		PackedPosition position = (PackedPosition)other;
+		return position.lo == lo && position.hi == hi;
+	}
+
+	@Override
+	public int hashCode() {
+		long mixed = lo * 0x9E3779B97F4A7C15L ^ hi;
+		return (int)(mixed ^ (mixed >>> 32));
+	}
+}
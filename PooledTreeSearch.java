@@ -0,0 +1,255 @@
+/**
+ * The same UCT search as MonteCarloTreeSearch, but over a tree kept in parallel primitive arrays instead of
+ * Node objects: a node is an index, with its type, action, visits, utility, first child and child count in
+ * the arrays below. The arrays are allocated once, for a fixed number of nodes, and a search just starts
+ * filling them from index 0 again, so searching allocates nothing and leaves no garbage, even in the
+ * opening where the tree grows fastest.
+ *
+ * Nodes don't hold a board either. A simulation plays the actions on the way down onto one scratch board
+ * (boardSet) and takes them back afterwards (undoMove).
+ *
+ * When a node gets its first child, a block of slots for all its possible children is reserved at the end
+ * of the pool; they are filled in (in random order) as the node is expanded further, so the children of a
+ * node are always firstChild[node] .. firstChild[node] + childCount[node] - 1. A move node whose pending
+ * piece can win is created as a terminal node right away, as is a choose node on a full board. Once the
+ * pool is full, leaves are just played out without growing the tree.
+ *
+ * This search is single threaded.
+ */
+public class PooledTreeSearch {
+    // Same constants as MonteCarloTreeSearch.
+    private static final double optimalParameter = 1.0 / Math.sqrt(2.0);
+    private static final double rootExplorationFactor = 5;
+
+    private static final byte MAX_CHOOSE = 0;
+    private static final byte MIN_CHOOSE = 1;
+    private static final byte MAX_MOVE = 2;
+    private static final byte MIN_MOVE = 3;
+    private static final byte TERMINAL = 4;
+
+    private final int capacity;
+    private final byte[] type;
+    /**
+     * The action leading to the node: the cell played for a choose node (or a terminal node below a move
+     * node), the piece handed over for a move node (so also the piece it has to place).
+     */
+    private final byte[] action;
+    /**
+     * Utility of a TERMINAL node, for max.
+     */
+    private final byte[] value;
+    private final int[] visits;
+    private final int[] utility;
+    private final int[] firstChild;
+    private final byte[] childCount;
+    /**
+     * Actions that don't have a child yet, as a mask of cells (move nodes) or pieces (choose nodes).
+     */
+    private final int[] unexpanded;
+    private int size;
+
+    private final QuartoBoard board = new QuartoBoard((String)null);
+    private final MonteCarloBoardSimulation playouts = new MonteCarloBoardSimulation();
+    // Nodes on the path of the current simulation, and the cells it placed pieces on.
+    private final int[] path = new int[2 * QuartoBoard.numberOfCells + 2];
+    private final int[] placed = new int[QuartoBoard.numberOfCells];
+    private int simulations;
+
+    public PooledTreeSearch(int capacity) {
+        this.capacity = capacity;
+        type = new byte[capacity];
+        action = new byte[capacity];
+        value = new byte[capacity];
+        visits = new int[capacity];
+        utility = new int[capacity];
+        firstChild = new int[capacity];
+        childCount = new byte[capacity];
+        unexpanded = new int[capacity];
+    }
+
+    /**
+     * Number of simulations run by the last search.
+     */
+    public int getSimulations() {
+        return simulations;
+    }
+
+    /**
+     * Number of nodes (including reserved slots) used by the last search.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Search position for MAX until the deadline (System.nanoTime()) passes. Returns the best piece
+     * to hand over if pendingPiece is -1, else the best cell to place pendingPiece on.
+     */
+    public int search(QuartoBoard position, int pendingPiece, long deadline, SearchRandom random) {
+        simulations = 0;
+        if(pendingPiece != -1 && position.isPieceDeadly(pendingPiece))
+            return position.findWinningCell(pendingPiece);
+
+        board.copyFrom(position);
+        size = 0;
+        int root = size++;
+        if(pendingPiece == -1)
+            initNode(root, MAX_CHOOSE, -1);
+        else
+            initNode(root, MAX_MOVE, pendingPiece);
+
+        for(; (simulations & (TimeManager.CLOCK_CHECK_INTERVAL - 1)) != 0 || System.nanoTime() < deadline; simulations++)
+            simulate(root, random);
+        return bestAction(root, random);
+    }
+
+    private void initNode(int node, byte nodeType, int nodeAction) {
+        action[node] = (byte)nodeAction;
+        visits[node] = 0;
+        utility[node] = 0;
+        firstChild[node] = -1;
+        childCount[node] = 0;
+        if(isMove(nodeType) && board.isPieceDeadly(nodeAction)) {
+            // Whoever places this piece wins with it.
+            type[node] = TERMINAL;
+            value[node] = (byte)(nodeType == MAX_MOVE ? 1 : -1);
+        } else if(!isMove(nodeType) && board.spacesLeft == 0) {
+            type[node] = TERMINAL;
+            value[node] = 0;
+        } else {
+            type[node] = nodeType;
+            unexpanded[node] = isMove(nodeType) ? board.emptyCells() : board.remainingPieces();
+        }
+    }
+
+    private static boolean isMove(byte nodeType) {
+        return nodeType == MAX_MOVE || nodeType == MIN_MOVE;
+    }
+
+    private static boolean isMax(byte nodeType) {
+        return nodeType == MAX_MOVE || nodeType == MAX_CHOOSE;
+    }
+
+    /**
+     * Descend from root until hitting a node that isn't fully expanded, expand a random child of it, play
+     * that out, and back the result up.
+     */
+    private void simulate(int root, SearchRandom random) {
+        int depth = 0;
+        int moves = 0;
+        int node = root;
+        int result;
+        path[depth++] = root;
+        while(true) {
+            if(type[node] == TERMINAL) {
+                result = value[node];
+                break;
+            }
+            if(unexpanded[node] != 0) {
+                int child = expand(node, random);
+                if(child == -1) {
+                    // Out of nodes: evaluate this one instead.
+                    result = playout(node, random);
+                    break;
+                }
+                if(isMove(type[node]))
+                    placed[moves++] = action[child];
+                path[depth++] = child;
+                result = type[child] == TERMINAL ? value[child] : playout(child, random);
+                break;
+            }
+            int child = select(node, node == root ? optimalParameter * rootExplorationFactor : optimalParameter);
+            if(isMove(type[node])) {
+                board.boardSet(action[child], action[node]);
+                placed[moves++] = action[child];
+            }
+            path[depth++] = child;
+            node = child;
+        }
+
+        for(int i = 0; i < depth; i++) {
+            visits[path[i]]++;
+            utility[path[i]] += result;
+        }
+        while(moves > 0)
+            board.undoMove(placed[--moves]);
+    }
+
+    /**
+     * Create a child of node for a random action it doesn't have a child for yet, and play that action
+     * on the board. Returns -1 (and changes nothing) if there's no room.
+     */
+    private int expand(int node, SearchRandom random) {
+        if(firstChild[node] == -1) {
+            int slots = Integer.bitCount(unexpanded[node]);
+            if(size > capacity - slots)
+                return -1;
+            firstChild[node] = size;
+            size += slots;
+        }
+        int childAction = QuartoBoard.randomSetBit(unexpanded[node], random);
+        unexpanded[node] &= ~(1 << childAction);
+        int child = firstChild[node] + childCount[node]++;
+        switch(type[node]) {
+            case MAX_CHOOSE:
+                initNode(child, MIN_MOVE, childAction);
+                break;
+            case MIN_CHOOSE:
+                initNode(child, MAX_MOVE, childAction);
+                break;
+            case MAX_MOVE:
+                board.boardSet(childAction, action[node]);
+                initNode(child, MAX_CHOOSE, childAction);
+                break;
+            default:
+                board.boardSet(childAction, action[node]);
+                initNode(child, MIN_CHOOSE, childAction);
+                break;
+        }
+        return child;
+    }
+
+    private int playout(int node, SearchRandom random) {
+        int pendingPiece = isMove(type[node]) ? action[node] : -1;
+        return playouts.play(board, isMax(type[node]), pendingPiece, random);
+    }
+
+    /**
+     * The child of a fully expanded node with the best upper confidence bound.
+     */
+    private int select(int node, double exploration) {
+        int multiplier = isMax(type[node]) ? 1 : -1;
+        double logParent = Math.log(visits[node]);
+        int first = firstChild[node];
+        int best = first;
+        double bestStat = Double.NEGATIVE_INFINITY;
+        for(int child = first; child < first + childCount[node]; child++) {
+            double games = visits[child];
+            double stat = utility[child] * multiplier / games + 2 * exploration * Math.sqrt(2.0 * logParent / games);
+            if(stat > bestStat) {
+                best = child;
+                bestStat = stat;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The action of the root child with the best average.
+     */
+    private int bestAction(int root, SearchRandom random) {
+        if(childCount[root] == 0) // No time to search at all.
+            return QuartoBoard.randomSetBit(unexpanded[root], random);
+        int first = firstChild[root];
+        int best = first;
+        double bestStat = Double.NEGATIVE_INFINITY;
+        for(int child = first; child < first + childCount[root]; child++) {
+            double stat = (double)utility[child] / visits[child];
+            if(stat > bestStat) {
+                best = child;
+                bestStat = stat;
+            }
+        }
+        return action[best];
+    }
+}
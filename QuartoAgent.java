@@ -29,7 +29,10 @@ public abstract class QuartoAgent {
 	//time limit is in milliseconds
 	protected int timeLimitForResponse = 10000;
 	protected static final int COMMUNICATION_DELAY = 2000;
-	protected long startTime = System.currentTimeMillis();
+	//as System.nanoTime()
+	protected long startTime = System.nanoTime();
+	//learns the actual network delay, starting out from COMMUNICATION_DELAY
+	protected final TimeManager timeManager = new TimeManager(COMMUNICATION_DELAY);
 
 	protected static int playerNumber;
 	protected GameClient gameClient;
@@ -39,6 +42,17 @@ public abstract class QuartoAgent {
 	protected abstract String moveSelectionAlgorithm(int pieceID);
 	protected abstract void applyMoveToBoard(int row, int column, int pieceID, boolean isMaxMove);
 
+	/*
+	 * Called when it's the opponent's turn to think: after they got our piece (pieceID, which they place next), 
+	 * and after their move (pieceID is -1, they choose our piece next). stopPondering is called as soon as their 
+	 * MOVE: or Q2: message arrives. By default the agent just waits.
+	 */
+	protected void startPondering(int pieceID) {
+	}
+
+	protected void stopPondering() {
+	}
+
 	public QuartoAgent(GameClient gameClient, String stateFileName) {
 		this.gameClient = gameClient;
 		this.quartoBoard = new QuartoBoard(stateFileName);
@@ -113,9 +127,11 @@ public abstract class QuartoAgent {
 		long end = System.currentTimeMillis();
 		System.out.println("Piece Selection took " + (end - start) + "ms");
 
+		long sent = System.nanoTime();
 		this.gameClient.writeToServer(pieceMessage);
 
 		MessageFromServer = this.gameClient.readFromServer(1000000);
+		timeManager.recordRoundTrip(System.nanoTime() - sent);
 		String[] splittedResponse = MessageFromServer.split("\\s+");
 		if (!isExpectedMessage(splittedResponse, ACKNOWLEDGMENT_PIECE_HEADER) && !isExpectedMessage(splittedResponse, ERROR_PIECE_HEADER)) {
 			turnError(MessageFromServer);
@@ -123,7 +139,9 @@ public abstract class QuartoAgent {
 
 		int pieceID = Integer.parseInt(splittedResponse[1], 2);
 
+		startPondering(pieceID);
 		MessageFromServer = this.gameClient.readFromServer(1000000);
+		stopPondering();
 		String[] splittedMoveResponse = MessageFromServer.split("\\s+");
 
 		isExpectedMessage(splittedMoveResponse, MOVE_MESSAGE_HEADER, true);
@@ -134,6 +152,7 @@ public abstract class QuartoAgent {
 		move[1] = Integer.parseInt(moveString[1]);
 
 		applyMoveToBoard(move[0], move[1], pieceID, false);
+		startPondering(-1);
 
 	}
 
@@ -141,6 +160,7 @@ public abstract class QuartoAgent {
 		//get message
 		String MessageFromServer;
 		MessageFromServer = this.gameClient.readFromServer(1000000);
+		stopPondering();
 		String[] splittedMessage = MessageFromServer.split("\\s+");
 
 		//close program if message is not the expected message
@@ -154,9 +174,11 @@ public abstract class QuartoAgent {
 		System.out.println("Move Selection took " + (end - start) + "ms");
 
 
+		long sent = System.nanoTime();
 		this.gameClient.writeToServer(moveMessage);
 
 		MessageFromServer = this.gameClient.readFromServer(1000000);
+		timeManager.recordRoundTrip(System.nanoTime() - sent);
 		String[] splittedMoveResponse = MessageFromServer.split("\\s+");
 		if (!isExpectedMessage(splittedMoveResponse, ACKNOWLEDGMENT_MOVE_HEADER) && !isExpectedMessage(splittedMoveResponse, ERROR_MOVE_HEADER)) {
 			turnError(MessageFromServer);
@@ -215,19 +237,27 @@ public abstract class QuartoAgent {
 
 
 	protected boolean hasTimeLeft(){
-		//System.out.println("Elapsed Time: " + getMillisecondsFromTimer() + " " + (this.timeLimitForResponse - COMMUNICATION_DELAY);
-		return getMillisecondsFromTimer() < (this.timeLimitForResponse - COMMUNICATION_DELAY);
+		return System.nanoTime() < getDeadline();
+	}
+
+	//The time (as System.nanoTime()) at which hasTimeLeft() starts returning false
+	protected long getDeadline() {
+		return timeManager.deadline(startTime, this.timeLimitForResponse);
+	}
+
+	//The time (as System.nanoTime()) to stop searching a turn with branching actions to choose from
+	protected long getDeadline(int branching) {
+		return timeManager.deadline(startTime, this.timeLimitForResponse, branching);
 	}
 
-	//Records the current time in milliseconds from when this function is called
+	//Records the current time from when this function is called
 	protected void startTimer() {
-		startTime = System.currentTimeMillis();
+		startTime = System.nanoTime();
 	}
 
 	//gets the time difference between now and when startTimer() was last called
 	protected long getMillisecondsFromTimer() {
-		//System.out.println("Nanos:" + ((System.nanoTime() - startTime) / 1000));
-		return (System.currentTimeMillis() - startTime);
+		return (System.nanoTime() - startTime) / 1000000;
 	}
 
 	/*
@@ -13,14 +13,57 @@ import java.util.*;
  *			> Bitwise OR the entire row together, storing that in a separate variable `orResult'
  *			> if orResult is not 11111, then all the pieces share a `0' in common - a win. 
  * 			> If andResult is not 0, then all pieces share a `1' in common - also a win. 
+ *
+ * On top of the byte array we keep a bitboard view of the position: an occupancy mask, and one 25 bit 
+ * mask per attribute value (10 in total: tall/short, solid/hollow, white/black, wood/metal, round/square). 
+ * A line is won exactly when one of those attribute masks covers the whole line mask, so the win checks
+ * become a handful of ANDs instead of loading and folding 5 bytes per line.
  */
 public final class QuartoBoard {
     public static final int numberOfRows = 5;
     public static final int numberOfColumns = 5;
     public static final int numberOfCells = numberOfRows * numberOfColumns;
     public static final int numberOfPieces = 32;
-	public static final int numberOfAttempts = 20;
 	public static final int MINIMAX_DEPTH = 6;
+	/**
+	 * Bitboard mask with a 1 for every cell on the board.
+	 */
+	public static final int FULL_BOARD = (1 << numberOfCells) - 1;
+	/**
+	 * Bitboard masks of the 12 lines that can win the game: 5 rows, 5 columns, then the 
+	 * top-left -> bottom-right diagonal and the top-right -> bottom-left diagonal.
+	 */
+	public static final int numberOfLines = numberOfRows + numberOfColumns + 2;
+	public static final int[] LINE_MASKS = new int[numberOfLines];
+	/**
+	 * For every cell, the indices (into LINE_MASKS) of the lines going through that cell.
+	 */
+	public static final int[][] CELL_LINES = new int[numberOfCells][];
+
+	static {
+		for(int row = 0; row < numberOfRows; row++)
+			for(int column = 0; column < numberOfColumns; column++)
+				LINE_MASKS[row] |= 1 << (row * numberOfColumns + column);
+		for(int column = 0; column < numberOfColumns; column++)
+			for(int row = 0; row < numberOfRows; row++)
+				LINE_MASKS[numberOfRows + column] |= 1 << (row * numberOfColumns + column);
+		for(int i = 0; i < numberOfRows; i++) {
+			LINE_MASKS[numberOfRows + numberOfColumns] |= 1 << (i * numberOfColumns + i);
+			LINE_MASKS[numberOfRows + numberOfColumns + 1] |= 1 << (i * numberOfColumns + (numberOfColumns - 1 - i));
+		}
+		for(int cell = 0; cell < numberOfCells; cell++) {
+			int count = 0;
+			for(int line = 0; line < numberOfLines; line++) 
+				if((LINE_MASKS[line] & (1 << cell)) != 0)
+					count++;
+			CELL_LINES[cell] = new int[count];
+			count = 0;
+			for(int line = 0; line < numberOfLines; line++) 
+				if((LINE_MASKS[line] & (1 << cell)) != 0)
+					CELL_LINES[cell][count++] = line;
+		}
+	}
+
 	/**
 	 * The board consists of a series of 25 1-byte integers, representing pieces on the board at the moment. 
 	 * If a piece is in play at index i, the value at that index board[i] is in [0, 31], as our pieces are 0 to 31. 
@@ -44,12 +87,99 @@ public final class QuartoBoard {
 	 *  Number of free cells on the board. Starts at 25. Reduced by 1 for every piece played.
      */
 	public int spacesLeft;
+	/**
+	 * Bitboard of the occupied cells: bit i is set if there's a piece on cell i.
+	 */
+	public int occupied;
+	/**
+	 * One bitboard per attribute value. For attribute bit b (see QuartoPiece), the cells holding a piece with 
+	 * that bit set are in attributeMasks[2 * b + 1], and the cells holding a piece with that bit clear are in 
+	 * attributeMasks[2 * b]. So the mask sharing an attribute with pieceID is attributeMask(b, pieceID).
+	 */
+	public int[] attributeMasks;
+	/**
+	 * Running state for each of the 12 lines, updated only for the lines through a cell when a piece is 
+	 * placed there (or taken back by undoMove). Each entry packs, from the lowest bit up:
+	 *    bits 0-4   AND of the pieces on the line (11111 while the line is empty)
+	 *    bits 5-9   OR of the pieces on the line
+	 *    bits 10-12 number of pieces on the line
+	 * A line is won when its count is 5 and (AND != 0 || OR != 11111), exactly like the byte checks above.
+	 */
+	public int[] lines;
+	private static final int EMPTY_LINE = 0x1F;
+	private static final int LINE_COUNT_SHIFT = 10;
+	/**
+	 * For a line holding 4 pieces, indexed by the low 10 bits of its state (AND | OR << 5): the 32 bit mask 
+	 * of the pieces that would complete it, i.e. pieces with a 1 in the AND or a 0 where the OR has a 0.
+	 */
+	private static final int[] LINE_THREATS = new int[1 << 10];
+
+	static {
+		for(int and = 0; and < 32; and++) {
+			for(int or = 0; or < 32; or++) {
+				for(int pieceID = 0; pieceID < numberOfPieces; pieceID++) {
+					if((pieceID & and) != 0 || ((pieceID | or) & 0x1F) != 0x1F)
+						LINE_THREATS[and | (or << 5)] |= 1 << pieceID;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The `deadly pieces' of the position: every piece that would complete some line already holding 4 pieces.
+	 * Kept up to date by boardSet/undoMove. It may contain pieces that are on the board already, so the pieces 
+	 * that are safe to hand over are (pieces & ~deadlyPieces), see safePieces().
+	 */
+	public int deadlyPieces;
+	/**
+	 * Zobrist keys. ZOBRIST[cell * numberOfPieces + pieceID] is xor'ed into hash when pieceID is placed on cell 
+	 * (and again when it's taken back), so the board part of the key costs O(1) per move. The side to act and 
+	 * the phase (choosing a piece, or placing a pending one) are mixed in by positionKey.
+	 */
+	private static final long[] ZOBRIST = new long[numberOfCells * numberOfPieces];
+	private static final long[] ZOBRIST_PENDING = new long[numberOfPieces];
+	private static final long ZOBRIST_MAX_TO_ACT;
+	private static final long ZOBRIST_CHOOSE;
+
+	static {
+		// Fixed seed, so keys are the same from run to run. 
+		long seed = 0x5155415254304C4CL;
+		for(int i = 0; i < ZOBRIST.length; i++)
+			ZOBRIST[i] = seed = splitMix(seed);
+		for(int i = 0; i < numberOfPieces; i++)
+			ZOBRIST_PENDING[i] = seed = splitMix(seed);
+		ZOBRIST_MAX_TO_ACT = seed = splitMix(seed);
+		ZOBRIST_CHOOSE = splitMix(seed);
+	}
+
+	private static long splitMix(long seed) {
+		long z = seed + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Zobrist key for pieceID sitting on cell.
+	 */
+	public static long zobrist(int cell, int pieceID) {
+		return ZOBRIST[cell * numberOfPieces + pieceID];
+	}
+
+	/**
+	 * Zobrist hash of the pieces on the board (only). See positionKey for the key of a full game state.
+	 */
+	public long hash;
 
 	public QuartoBoard(String stateFileName) {
         board = new byte[numberOfCells];
         Arrays.fill(board, (byte)-1); 
 		pieces = ~0; 
 		spacesLeft = numberOfCells;
+		occupied = 0;
+		attributeMasks = new int[2 * QuartoPiece.numberOfAttributes];
+		lines = new int[numberOfLines];
+		Arrays.fill(lines, EMPTY_LINE);
 		assert pieces == -1;
 
 		if (stateFileName != null) 
@@ -62,9 +192,44 @@ public final class QuartoBoard {
 		this.spacesLeft = quartoBoard.spacesLeft;
 		for (int i = 0; i < numberOfCells; i++) 
 			this.board[i] = quartoBoard.board[i]; 
+		this.occupied = quartoBoard.occupied;
+		this.attributeMasks = quartoBoard.attributeMasks.clone();
+		this.lines = quartoBoard.lines.clone();
+		this.deadlyPieces = quartoBoard.deadlyPieces;
+		this.hash = quartoBoard.hash;
+	}
+
+	/**
+	 * Take every piece off the board.
+	 */
+	public void clear() {
+		Arrays.fill(board, (byte)-1);
+		Arrays.fill(attributeMasks, 0);
+		Arrays.fill(lines, EMPTY_LINE);
+		pieces = ~0;
+		spacesLeft = numberOfCells;
+		occupied = 0;
+		deadlyPieces = 0;
+		hash = 0;
+	}
+
+	/**
+	 * Overwrite this board with the state of another one, without allocating anything.
+	 */
+	public void copyFrom(QuartoBoard other) {
+		System.arraycopy(other.board, 0, board, 0, numberOfCells);
+		System.arraycopy(other.attributeMasks, 0, attributeMasks, 0, attributeMasks.length);
+		System.arraycopy(other.lines, 0, lines, 0, numberOfLines);
+		deadlyPieces = other.deadlyPieces;
+		hash = other.hash;
+		pieces = other.pieces;
+		spacesLeft = other.spacesLeft;
+		occupied = other.occupied;
 	}
 
 	public boolean equals(QuartoBoard other){
+		if(other.hash != this.hash)
+			return false;
 		for(int i = 0; i < board.length; i++){
 			if(other.board[i] != this.board[i])
 				return false;
@@ -89,9 +254,7 @@ public final class QuartoBoard {
 		assert row >= 0 && row < numberOfRows && column >= 0 && column < numberOfColumns && pieceID >= 0 && 
 			pieceID < numberOfPieces && board[row * numberOfColumns + column] == -1 && !isPieceOnBoard(pieceID);
 
-		board[row * numberOfColumns + column] = (byte)pieceID;
-		spacesLeft--;
-		pieces = (pieces ^ (1<<pieceID)); 
+		boardSet(row * numberOfColumns + column, pieceID);
 	}
 
 	/**
@@ -103,6 +266,149 @@ public final class QuartoBoard {
 		board[cell] = (byte)pieceID;
 		spacesLeft--;
 		pieces = (pieces ^ (1<<pieceID)); 
+		hash ^= ZOBRIST[cell * numberOfPieces + pieceID];
+
+		int bit = 1 << cell;
+		occupied |= bit;
+		for(int b = 0; b < QuartoPiece.numberOfAttributes; b++)
+			attributeMasks[(b << 1) | ((pieceID >>> b) & 1)] |= bit;
+		for(int line : CELL_LINES[cell])
+			lines[line] = ((lines[line] & (pieceID | ~0x1F)) | (pieceID << 5)) + (1 << LINE_COUNT_SHIFT);
+		updateDeadlyPieces();
+	}
+
+	/**
+	 * Take back the piece on the specified cell, exactly reversing the boardSet that put it there. 
+	 * This lets the searches play and retract moves on a single board instead of copying it for every child.
+	 */
+	public void undoMove(int cell) {
+		assert cell >= 0 && cell < numberOfCells && board[cell] != -1;
+
+		int pieceID = board[cell];
+		board[cell] = (byte)-1;
+		spacesLeft++;
+		pieces = (pieces ^ (1<<pieceID));
+		hash ^= ZOBRIST[cell * numberOfPieces + pieceID];
+
+		int bit = 1 << cell;
+		occupied &= ~bit;
+		for(int b = 0; b < QuartoPiece.numberOfAttributes; b++)
+			attributeMasks[(b << 1) | ((pieceID >>> b) & 1)] &= ~bit;
+
+		// An AND can't be undone directly, but the attribute masks tell us exactly which bits the 
+		// remaining pieces on the line still have in common.
+		for(int line : CELL_LINES[cell]) {
+			int mask = LINE_MASKS[line];
+			int and = 0;
+			int or = 0;
+			for(int b = 0; b < QuartoPiece.numberOfAttributes; b++) {
+				if((attributeMasks[b << 1] & mask) == 0)
+					and |= 1 << b;
+				if((attributeMasks[(b << 1) | 1] & mask) != 0)
+					or |= 1 << b;
+			}
+			lines[line] = ((lines[line] >>> LINE_COUNT_SHIFT) - 1) << LINE_COUNT_SHIFT | (or << 5) | and;
+		}
+		updateDeadlyPieces();
+	}
+
+	/**
+	 * The pieces that would complete a line holding 4 pieces whose AND/OR are the given values.
+	 */
+	public static int lineThreats(int and, int or) {
+		return LINE_THREATS[(and & 0x1F) | ((or & 0x1F) << 5)];
+	}
+
+	private void updateDeadlyPieces() {
+		int deadly = 0;
+		for(int line = 0; line < numberOfLines; line++) {
+			int state = lines[line];
+			if((state >>> LINE_COUNT_SHIFT) == numberOfColumns - 1)
+				deadly |= LINE_THREATS[state & 0x3FF];
+		}
+		deadlyPieces = deadly;
+	}
+
+	/**
+	 * The unplayed pieces that can't be placed anywhere to win the game on the next move.
+	 */
+	public int safePieces() {
+		return pieces & ~deadlyPieces;
+	}
+
+	/**
+	 * The pieces that would be safe to hand over after placing pieceID on cell (which mustn't win the game), 
+	 * without changing the board: only the lines through cell change.
+	 */
+	public int safePiecesAfter(int cell, int pieceID) {
+		int deadly = 0;
+		for(int line = 0; line < numberOfLines; line++) {
+			int state = lines[line];
+			if((LINE_MASKS[line] & (1 << cell)) != 0)
+				state = ((state & (pieceID | ~0x1F)) | (pieceID << 5)) + (1 << LINE_COUNT_SHIFT);
+			if((state >>> LINE_COUNT_SHIFT) == numberOfColumns - 1)
+				deadly |= LINE_THREATS[state & 0x3FF];
+		}
+		return pieces & ~(1 << pieceID) & ~deadly;
+	}
+
+	/**
+	 * Check if pieceID can be placed somewhere to win the game.
+	 */
+	public boolean isPieceDeadly(int pieceID) {
+		return (deadlyPieces & (1 << pieceID)) != 0;
+	}
+
+	/**
+	 * Find a cell where placing pieceID wins the game, or -1 if there isn't one. 
+	 * Each line holding 4 pieces has exactly one empty cell, so this is a lookup per line.
+	 */
+	public int findWinningCell(int pieceID) {
+		if(!isPieceDeadly(pieceID))
+			return -1;
+		for(int line = 0; line < numberOfLines; line++) {
+			int state = lines[line];
+			if((state >>> LINE_COUNT_SHIFT) == numberOfColumns - 1 && (LINE_THREATS[state & 0x3FF] & (1 << pieceID)) != 0)
+				return Integer.numberOfTrailingZeros(LINE_MASKS[line] & ~occupied);
+		}
+		throw new RuntimeException("deadlyPieces is out of sync with the lines");
+	}
+
+	public int lineCount(int line) {
+		return lines[line] >>> LINE_COUNT_SHIFT;
+	}
+
+	public int lineAnd(int line) {
+		return lines[line] & 0x1F;
+	}
+
+	public int lineOr(int line) {
+		return (lines[line] >>> 5) & 0x1F;
+	}
+
+	/**
+	 * 64 bit key of the full game state: the board, whose turn it is, and whether that player is choosing a 
+	 * piece (pendingPieceID = -1) or placing pendingPieceID. 
+	 */
+	public long positionKey(boolean maxToAct, int pendingPieceID) {
+		return positionKey(hash, maxToAct, pendingPieceID);
+	}
+
+	/**
+	 * positionKey for a board whose Zobrist hash was computed elsewhere (e.g. for a transformed board).
+	 */
+	public static long positionKey(long boardHash, boolean maxToAct, int pendingPieceID) {
+		long key = boardHash;
+		if(maxToAct)
+			key ^= ZOBRIST_MAX_TO_ACT;
+		return key ^ (pendingPieceID < 0 ? ZOBRIST_CHOOSE : ZOBRIST_PENDING[pendingPieceID]);
+	}
+
+	/**
+	 * The bitboard of cells holding a piece that shares attribute bit b with pieceID.
+	 */
+	public int attributeMask(int b, int pieceID) {
+		return attributeMasks[(b << 1) | ((pieceID >>> b) & 1)];
 	}
 
 	/**
@@ -143,9 +449,8 @@ public final class QuartoBoard {
 	
 		boardSet(cell, pieceID);
 		
-		int row = cell / numberOfColumns;
-		int column = cell % numberOfColumns;
-		if(checkRow(row) || checkColumn(column) || checkDiagonals()) // This move wins, somehow
+		// Only the lines through this cell can have been completed by this move.
+		if(doesCellWin(cell)) // This move wins, somehow
 			return modifier;
 		else if(spacesLeft == 0) 
 			return 0;
@@ -161,17 +466,43 @@ public final class QuartoBoard {
 		assert spacesLeft != 0;
 		assert cell >= 0 && cell < numberOfCells && pieceID >= 0 && pieceID < numberOfPieces && board[cell] == -1 && !isPieceOnBoard(pieceID);
 		
-		board[cell] = (byte)pieceID;
-		
-		int row = cell / numberOfColumns;
-		int column = cell % numberOfColumns;
-
-		boolean result = checkRow(row) || checkColumn(column) || checkDiagonals();
+		// Only a line already holding 4 pieces can be completed, and then it's a win if the new piece 
+		// keeps a 1 in the AND or a 0 in the OR.
+		for(int line : CELL_LINES[cell]) {
+			int state = lines[line];
+			if((state >>> LINE_COUNT_SHIFT) == numberOfColumns - 1 && 
+					((state & pieceID) != 0 || (((state >>> 5) | pieceID) & 0x1F) != 0x1F))
+				return true;
+		}
+		return false;
+	}
 
-		board[cell] = (byte)-1;
-	
-		return result;
+	/**
+	 * Check if the piece already sitting on cell completes any line through that cell.
+	 */
+	private boolean doesCellWin(int cell) {
+		for(int line : CELL_LINES[cell]) {
+			int state = lines[line];
+			if((state >>> LINE_COUNT_SHIFT) == numberOfColumns && 
+					((state & 0x1F) != 0 || ((state >>> 5) & 0x1F) != 0x1F))
+				return true;
+		}
+		return false;
+	}
 
+	/**
+	 * A line is won if every cell on it holds a piece sharing one attribute value, which means 
+	 * one of the attribute bitboards covers the entire line.
+	 */
+	public boolean checkLine(int line) {
+		int mask = LINE_MASKS[line];
+		if((occupied & mask) != mask)
+			return false;
+		for(int i = 0; i < attributeMasks.length; i++) {
+			if((attributeMasks[i] & mask) == mask)
+				return true;
+		}
+		return false;
 	}
 
 	public boolean canApplyAlphaBeta() {
@@ -179,134 +510,74 @@ public final class QuartoBoard {
 	}
 
 	public boolean checkRow(int row) {
-		
-		// Check if row is full
-		if (board[row * numberOfColumns + 0] == -1 || 
-			board[row * numberOfColumns + 1] == -1 || 
-			board[row * numberOfColumns + 2] == -1 || 
-			board[row * numberOfColumns + 3] == -1 || 
-			board[row * numberOfColumns + 4] == -1)
-			return false;
-
-		// Check for a win
-		int rowAnd = board[row * numberOfColumns + 0] & 
-						board[row * numberOfColumns + 1] & 
-						board[row * numberOfColumns + 2] & 
-						board[row * numberOfColumns + 3] & 
-						board[row * numberOfColumns + 4];
-		int rowOr =  board[row * numberOfColumns + 0] |
-						board[row * numberOfColumns + 1] | 
-						board[row * numberOfColumns + 2] | 
-						board[row * numberOfColumns + 3] | 
-						board[row * numberOfColumns + 4];
-		
-		return rowAnd != 0 || rowOr != 0x001F;
+		return checkLine(row);
 	}
 
 	public boolean checkColumn(int column) {
-
-		// Check if column is full
-		if (board[0 * numberOfColumns + column] == -1 || 
-			board[1 * numberOfColumns + column] == -1 ||
-			board[2 * numberOfColumns + column] == -1 || 
-			board[3 * numberOfColumns + column] == -1 || 
-			board[4 * numberOfColumns + column] == -1) 
-			return false;
-
-		// Check for a win
-        int rowAnd =    board[0 * numberOfColumns + column] & 
-                        board[1 * numberOfColumns + column] & 
-                        board[2 * numberOfColumns + column] & 
-                        board[3 * numberOfColumns + column] & 
-                        board[4 * numberOfColumns + column];
-        int rowOr =     board[0 * numberOfColumns + column] | 
-                        board[1 * numberOfColumns + column] | 
-                        board[2 * numberOfColumns + column] | 
-                        board[3 * numberOfColumns + column] | 
-                        board[4 * numberOfColumns + column];
-
-        return rowAnd != 0 || rowOr != 0x001F;
+		return checkLine(numberOfRows + column);
 	}
 
 	public boolean checkFirstDiagonal() {
-		// Check if top-left -> bottom-right diagonal is full.
-		if (board[0 * numberOfColumns + 0] == -1 ||  
-			board[1 * numberOfColumns + 1] == -1 ||  
-			board[2 * numberOfColumns + 2] == -1 ||  
-			board[3 * numberOfColumns + 3] == -1 ||  
-			board[4 * numberOfColumns + 4] == -1)
-			return false;
-
-		// Check if there's a win along it
-		int rowAnd =    board[0 * numberOfColumns + 0] & 
-						board[1 * numberOfColumns + 1] & 
-						board[2 * numberOfColumns + 2] & 
-						board[3 * numberOfColumns + 3] & 
-						board[4 * numberOfColumns + 4];
-		int rowOr =     board[0 * numberOfColumns + 0] | 
-						board[1 * numberOfColumns + 1] | 
-						board[2 * numberOfColumns + 2] | 
-						board[3 * numberOfColumns + 3] | 
-						board[4 * numberOfColumns + 4];
-		return rowAnd != 0 || rowOr != 0x001F;
+		// top-left -> bottom-right diagonal
+		return checkLine(numberOfRows + numberOfColumns);
 	}
 
 	public boolean checkSecondDiagonal(){
-		// Check if the top-right -> bottom-left diagonals are full.
-        if (board[0 * numberOfColumns + 4] == -1 ||  
-			board[1 * numberOfColumns + 3] == -1 || 
-			board[2 * numberOfColumns + 2] == -1 || 
-			board[3 * numberOfColumns + 1] == -1 ||  
-			board[4 * numberOfColumns + 0] == -1 )
-			return false;
-
-		// Check if there's a win along the top-right -> bottom-left diagonal
-		int rowAnd =    board[0 * numberOfColumns + 4] & 
-						board[1 * numberOfColumns + 3] & 
-						board[2 * numberOfColumns + 2] & 
-						board[3 * numberOfColumns + 1] & 
-						board[4 * numberOfColumns + 0];
-		int rowOr =     board[0 * numberOfColumns + 4] | 
-						board[1 * numberOfColumns + 3] | 
-						board[2 * numberOfColumns + 2] | 
-						board[3 * numberOfColumns + 1] | 
-						board[4 * numberOfColumns + 0];
-
-		return rowAnd != 0 || rowOr != 0x001F;	
+		// top-right -> bottom-left diagonal
+		return checkLine(numberOfRows + numberOfColumns + 1);
 	}
 
 	public boolean checkDiagonals() {
 		return checkFirstDiagonal() || checkSecondDiagonal();
 	}
 
-	public int chooseRandomPieceNotPlayed() {
-		for(int i = 0; i < numberOfAttempts; i++){
-			int pieceId = (int)(Math.random() * numberOfPieces);
-			if(!isPieceOnBoard(pieceId)) 
-				return pieceId;
-		}
+	public int chooseRandomPieceNotPlayed(SearchRandom random) {
+		return pieces == 0 ? -1 : randomSetBit(pieces, random);
+	}
 
-		// Just choose the next free piece. 
-		for(int i = 0; i < numberOfPieces; i++) 
-            if((pieces & (1<<i)) != 0) 
-                return i;
+	public int chooseRandomPositionNotPlayed(SearchRandom random) {
+		int empty = emptyCells();
+		return empty == 0 ? -1 : randomSetBit(empty, random);
+	}
 
-		return -1;
+	/**
+	 * Bitboard of the empty cells. Legal placements can be enumerated with 
+	 * for(int cells = emptyCells(); cells != 0; cells &= cells - 1) { int cell = Integer.numberOfTrailingZeros(cells); ... }
+	 */
+	public int emptyCells() {
+		return ~occupied & FULL_BOARD;
 	}
 
-	public int chooseRandomPositionNotPlayed() {
-		for(int i = 0; i < numberOfAttempts; i++){
-			int move = (int)(Math.random() * numberOfCells);
-			if(board[move] == -1) 
-				return move;
-		}
+	/**
+	 * Mask of the unplayed pieces (the same as the pieces field), enumerated the same way as emptyCells().
+	 */
+	public int remainingPieces() {
+		return pieces;
+	}
 
-		// Just choose the next free cell. 
-		for(int i = 0; i < numberOfCells; i++) 
-			if(board[i] == -1) 
-				return i;
+	/**
+	 * Index of the n-th (0 based, from the lowest bit) set bit of mask. Binary search over the halves of the 
+	 * mask, so it takes 5 steps no matter which bit it is. Requires n < Integer.bitCount(mask).
+	 */
+	public static int nthSetBit(int mask, int n) {
+		assert n >= 0 && n < Integer.bitCount(mask);
+		int position = 0;
+		for(int width = 16; width > 0; width >>>= 1) {
+			int count = Integer.bitCount(mask & ((1 << width) - 1));
+			if(n >= count) {
+				n -= count;
+				mask >>>= width;
+				position += width;
+			}
+		}
+		return position;
+	}
 
-		return -1;
+	/**
+	 * Uniformly random set bit of a (non-zero) mask.
+	 */
+	public static int randomSetBit(int mask, SearchRandom random) {
+		return nthSetBit(mask, random.nextInt(Integer.bitCount(mask)));
 	}
 
 	// ------------------------------------------------------------------------------
@@ -17,6 +17,7 @@ public class QuartoPiece {
 	//third position [2] is white/black
 	//fourth position [3] is wood/metal
 	//fifth position [4] is round/square
+	public static final int numberOfAttributes = 5;
 	
 	private QuartoPiece(int pieceID) {
 	}
@@ -1,12 +1,20 @@
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 
 public class QuartoPlayerAgent extends QuartoAgent {
-    // Higher = more exploration. Optimal = 1.0 / SQRT(2.0) 
-    private final double optimalParameter = 1.0 / Math.sqrt(2.0);
-    private double expParameter = optimalParameter;
     private Node root = null;
-    private int simulations = 0;
+    private final SearchRandom random = SearchRandom.current();
+    private final MonteCarloTreeSearch search = new MonteCarloTreeSearch(SearchConfig.THREADS, SearchConfig.ROOT_PARALLEL, 
+                                                                              SearchConfig.PLAYOUTS_PER_LEAF, SearchConfig.PLAYOUT_THREADS,
+                                                                              SearchConfig.TRANSPOSITIONS ? new TranspositionTable(SearchConfig.TRANSPOSITION_CAPACITY, SearchConfig.CANONICAL_TRANSPOSITIONS) : null,
+                                                                              SearchConfig.NODE_BUDGET, SearchConfig.HYBRID_PLIES,
+                                                                              SearchConfig.RAVE_EQUIVALENCE, SearchConfig.WIDENING);
+    // Created on first use, it's big.
+    private PooledTreeSearch pooledSearch = null;
+    // The search running on the opponent's time (see startPondering), and the flag that stops it.
+    private Thread ponderer = null;
+    private AtomicBoolean ponderStop = null;
 
     public QuartoPlayerAgent(GameClient gameClient, String stateFileName) {
         super(gameClient, stateFileName);
@@ -42,14 +50,12 @@ public class QuartoPlayerAgent extends QuartoAgent {
         System.out.println("--------------------------------------");
         System.out.println("Entering piece selection");
         System.out.println("--------------------------------------");
-        simulations = 0;     
-        if(quartoBoard.spacesLeft >= 24) {
-            // The first 2 moves are the things that cause the most problems with garbage collection,
-            // and don't seem to ever matter.
-            // so I just choose a random move, to be pragmatic about the limitations of the JVM in realtime applications
+        if(inPooledPhase()) {
+            // The first 2 moves used to be random: the Node tree grows fastest there and caused garbage 
+            // collection problems. The pooled tree doesn't allocate, so it searches them too.
             root = null;
-            System.out.println("Taking a random move to prevent GC problems. ");
-            int piece = quartoBoard.chooseRandomPieceNotPlayed();
+            int piece = getPooledSearch().search(quartoBoard, -1, getDeadline(), random);
+            System.out.println("Ran " + pooledSearch.getSimulations() + " simulations (" + pooledSearch.size() + " nodes)");
             String answer = QuartoPiece.binaryStringRepresentation(piece);
             System.out.println("answer=" + answer);
             return answer;
@@ -77,15 +83,12 @@ public class QuartoPlayerAgent extends QuartoAgent {
         System.out.println("Entering move selection.");
         System.out.println("--------------------------------------");
         this.startTimer();
-        simulations = 0;
 
-        if(quartoBoard.spacesLeft >= 24) {
-            // The first 2 moves are the things that cause the most problems with garbage collection,
-            // and don't seem to ever matter.
-            // so I just choose a random move, to be pragmatic about the limitations of the JVM in realtime applications
+        if(inPooledPhase()) {
+            // See pieceSelectionAlgorithm.
             root = null;
-            System.out.println("Taking a random move to prevent GC problems. ");
-            int cell = quartoBoard.chooseRandomPositionNotPlayed();
+            int cell = getPooledSearch().search(quartoBoard, pieceID, getDeadline(), random);
+            System.out.println("Ran " + pooledSearch.getSimulations() + " simulations (" + pooledSearch.size() + " nodes)");
             String answer = quartoBoard.getCoordinates(cell);
             System.out.println("move=" + answer);
             return answer;
@@ -125,10 +128,9 @@ public class QuartoPlayerAgent extends QuartoAgent {
             // Last action was MAX MOVE
             // Thus, level 2 of the tree is a MAX_CHOOSE
             assert root instanceof MaxMoveNode;
-            assert (root.solvedNode != null && root.solvedNode instanceof TerminatingNode) || root.children.values().iterator().next() instanceof MaxChooseNode || root.children.values().iterator().next() instanceof TerminatingNode;
-            int hash = MaxChooseNode.Hash(cell, pieceID);
-            if(!root.solved && root.children.containsKey(hash))
-            	root = root.children.get(hash);
+            assert (root.solvedNode != null && root.solvedNode instanceof TerminatingNode) || root.childAt(0) instanceof MaxChooseNode || root.childAt(0) instanceof TerminatingNode;
+            if(!root.solved && root.getChild(cell) != null)
+            	root = root.getChild(cell);
             else
             	root = null;
         } else {
@@ -137,13 +139,11 @@ public class QuartoPlayerAgent extends QuartoAgent {
         	// After that, we need some server input 
         	// to figure out what to do with the MIN_CHOOSE root        	
             assert root instanceof MaxChooseNode;
-            assert (root.solvedNode != null && root.solvedNode instanceof TerminatingNode) ||root.children.values().iterator().next() instanceof MinMoveNode || root.children.values().iterator().next() instanceof TerminatingNode;
-            int hash = Node.Hash(0, pieceID);
-            if(!root.solved && root.children.containsKey(hash)) {
-                root = root.children.get(hash);
-                hash = MinChooseNode.Hash(cell, pieceID);
-                if(!root.solved && root.children.containsKey(hash)) {
-                	root = root.children.get(hash);
+            assert (root.solvedNode != null && root.solvedNode instanceof TerminatingNode) ||root.childAt(0) instanceof MinMoveNode || root.childAt(0) instanceof TerminatingNode;
+            if(!root.solved && root.getChild(pieceID) != null) {
+                root = root.getChild(pieceID);
+                if(!root.solved && root.getChild(cell) != null) {
+                	root = root.getChild(cell);
                 } else {
                 	root = null;
                 }
@@ -153,268 +153,154 @@ public class QuartoPlayerAgent extends QuartoAgent {
         }
     }
 
-    // -------------------------------------------------------------
-    // Tree search code:
-    //
+    /**
+     * Search the tree below what the opponent is deciding about in the background, until they've decided: 
+     * the node for the piece we handed over, or (pieceID -1) the root, after their move. applyMoveToBoard then 
+     * follows their actual choice down the tree, so the statistics gathered for it are kept. Only done when 
+     * we have a tree, and the outcome isn't known already.
+     */
+    @Override
+    protected void startPondering(int pieceID) {
+        if(!SearchConfig.PONDER || root == null || root.isProven())
+            return;
+        final Node node = pieceID == -1 ? root : root.getChild(pieceID);
+        if(node == null || node.isProven())
+            return;
+        // The node stands for the current position (lazy boards leave that to us).
+        if(node.board == null)
+            node.board = new QuartoBoard(quartoBoard);
+        if(!quartoBoard.equals(node.board))
+            return;
+        node.expand();
+        if(node.isProven())
+            return;
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        ponderStop = stop;
+        ponderer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                search.search(node, Long.MAX_VALUE, stop);
+            }
+        }, "ponder");
+        ponderer.setDaemon(true);
+        ponderer.start();
+    }
+
+    @Override
+    protected void stopPondering() {
+        if(ponderer == null)
+            return;
+        ponderStop.set(true);
+        try {
+            ponderer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ponderer = null;
+        ponderStop = null;
+        System.out.println("Pondered " + search.getSimulations() + " simulations");
+    }
 
     /**
-     * Computes the bound specified in the monte carlo algorithm
+     * Whether this turn is searched with the pooled tree: the opening, or all turns with quarto.pooledSearch.
+     * Once it is over the pool is let go, so its nodes don't eat into the Node tree's NODE_BUDGET.
      */
-    private double computeUCB(Node node, int parentSimulations, int multiplier){
-        if(node.totalGames == 0) 
-            return Double.POSITIVE_INFINITY;
-        return node.utilitySum * multiplier / node.totalGames + 2 * expParameter * Math.sqrt(2.0 * Math.log(parentSimulations) / node.totalGames);
+    private boolean inPooledPhase() {
+        if(quartoBoard.spacesLeft >= 24 || SearchConfig.POOLED_SEARCH)
+            return true;
+        pooledSearch = null;
+        return false;
+    }
+
+    private PooledTreeSearch getPooledSearch() {
+        if(pooledSearch == null)
+            pooledSearch = new PooledTreeSearch(SearchConfig.POOL_NODES);
+        return pooledSearch;
     }
 
     /**
-     * Take the argmax over a collection of nodes
-     * @param parentSimulations - # simulations run by the parent node (whose children are passed to function)
-     * @param multiplier - +1/-1, depending on whether MIN or MAX is playing
+     * With lazy boards the node we followed to doesn't have a board yet; it's the current one. 
      */
-    private Node argmax(Collection<Node> stats, int parentSimulations, int multiplier){
-        Iterator<Node> it = stats.iterator();
-        Node best = it.next();
-        double bestStat = computeUCB(best, parentSimulations, multiplier);
-        while(it.hasNext()) {
-            Node node = it.next();
-            double temp = computeUCB(node, parentSimulations, multiplier);
-            if(temp > bestStat) {
-                best = node;
-                bestStat = temp;
-            }
-        }    
-        return best;
+    private void materializeRoot() {
+        if(root != null && !(root instanceof TerminatingNode) && root.board == null)
+            root.board = new QuartoBoard(quartoBoard);
     }
 
     /**
      * Run a Monte Carlo Simulation to get the best piece.
      */
     public int getBestPiece() {
-        // Make sure we have a valid root.
-        if(root == null || root instanceof TerminatingNode)
+        // Make sure we have a valid root. (With canonical transpositions the node we followed can stand for 
+        // a symmetric version of this position, which we can't use.)
+        materializeRoot();
+        if(root == null || root instanceof TerminatingNode || !quartoBoard.equals(root.board))
         	root = new MaxChooseNode(new QuartoBoard(quartoBoard), -1, -1);
         root.parent = null;
         root.expand();
         assert root instanceof MaxChooseNode;
         assert root.isExpanded();
-        assert this.quartoBoard.equals(root.board);
-        assert expParameter > 0;
-        System.gc();
 
         if(root.solved) {
             // There's a winning move available at the root. Just take it.
         	System.out.println("Root is solved.");
         	return root.solvedNode.parentActionPieceID;
         } else {
-            expParameter = optimalParameter;
             // Run simulations while there's time.
-            while(hasTimeLeft()) {
-                // Explore more generously at the root.
-                expParameter *= 5;
-                Node best = argmax(root.children.values(), simulations, 1);
-                expParameter /= 5;
-                runSimulation(best);  
-            }
+            search.search(root, getDeadline(root.maxChildren()));
  
             // Get the answer (and print diagnostics)
-            expParameter = 0;
-            Node best = argmax(root.children.values(), simulations, 1);
-            for(Node child : root.children.values()){
-        		System.out.println(child);
+            Node best = search.bestChild(root);
+            for(int i = 0; i < root.childCount; i++){
+        		System.out.println(root.childAt(i));
             }
-            expParameter = optimalParameter;
             System.out.println("best=" + best);
-            System.out.println("Ran " + simulations + " simulations");
-            return best.parentActionPieceID;
+            System.out.println("Ran " + search.getSimulations() + " simulations");
+            if(root.isProven())
+                System.out.println("Root proven: " + root.proven);
+            System.out.println("Tree has " + search.getTreeSize() + " nodes (pruned " + search.getEvicted() + " in " + search.getPrunes() + " passes)");
+            return search.bestChildAction(root);
         }     
     }
 
     public int getBestMove(int pieceID) {
         // Make sure root is in a valid state
         if(root != null) {
-    		int hash = Node.Hash(0, pieceID); 
-    		if(root.children.containsKey(hash)) {
-    			root = root.children.get(hash);
+    		if(root.getChild(pieceID) != null) {
+    			root = root.getChild(pieceID);
     		} else {
     			root = null;
     		}
     	}
-       	if(root == null || root instanceof TerminatingNode) 
+        materializeRoot();
+       	if(root == null || root instanceof TerminatingNode || !quartoBoard.equals(root.board) || root.parentActionPieceID != pieceID) 
             root = new MaxMoveNode(new QuartoBoard(quartoBoard), pieceID);            
         root.parent = null;
         root.expand();
         assert root instanceof MaxMoveNode;
         assert root.isExpanded();
-        assert this.quartoBoard.equals(root.board);
-        assert expParameter > 0;
-        System.gc();
         
         if(root.solved) {
             // There's a winning move available at the root. Just take it.
         	System.out.println("Root is solved.");
             return root.solvedNode.parentActionCell;
         } else {
-            expParameter = optimalParameter;
             // While time left, run simulations
-            while(hasTimeLeft()) {
-                // Explore more generously at the root.
-                expParameter *= 5;
-                Node best = argmax(root.children.values(), simulations, 1); 
-                expParameter /= 5;
-                runSimulation(best);          
-            }
+            search.search(root, getDeadline(root.maxChildren()));
 
             // Print diagnostics + get the answer
-            expParameter = 0;
-            Node best = argmax(root.children.values(), simulations, 1);
-            for(Node child : root.children.values()){
-        		System.out.println(child);
+            Node best = search.bestChild(root);
+            for(int i = 0; i < root.childCount; i++){
+        		System.out.println(root.childAt(i));
             }
             System.out.println("best=" + best);
-            System.out.println("Ran " + simulations + " simulations");
-            expParameter = optimalParameter;
-            
-            return best.parentActionCell;
-        }
-    }
-
-    /**
-     * Traverse the tree using mutual recursion, until hitting an unexplored node.
-     * Then, expand it, run a simulation on it, and backtrace the results.
-     */
-    private void runSimulation(Node node){
-    	simulations++;
-        
-    	if(node.solved) {
-            node.utilitySum += ((TerminatingNode)node.solvedNode).value;
-            node.totalGames++;
-            return;
-        }    	
-    	
-        if(node instanceof MaxMoveNode) {
-            playGameMaxMove(node, ((MaxMoveNode)node).parentActionPieceID);
-        } else if(node instanceof MaxChooseNode) {
-            playGameMaxChoose(node);
-        } else if(node instanceof MinMoveNode) {
-            playGameMinMove(node, ((MinMoveNode)node).parentActionPieceID);
-        } else if(node instanceof MinChooseNode) {
-            playGameMinChoose(node);
-        } else if(node instanceof TerminatingNode){
-            node.utilitySum += ((TerminatingNode)node).value;
-            node.totalGames++;
-            return;
-        } else {
-            throw new RuntimeException("Invalid simulation state");
-        }
-    }
-
-    private int playGameMaxMove(Node node, int pieceID) {        
-        if(node.isExpanded()){
-            Node child = argmax(node.children.values(), node.totalGames, 1);
-            if(child instanceof TerminatingNode){                
-                int utility = ((TerminatingNode)child).value;
-                node.utilitySum += utility;
-                node.totalGames++;
-                child.utilitySum += utility;
-                child.totalGames++;                
-                return utility;
-            }
-            int utility = playGameMaxChoose(child);
-            node.utilitySum += utility;
-            node.totalGames++;
-            return utility;
-        } else {
-            return simulateRandom(node);
-        }
-    }
-
-    private int playGameMaxChoose(Node node) {
-        if(node.isExpanded()){
-            Node child = argmax(node.children.values(), node.totalGames, 1);
-            if(child instanceof TerminatingNode){                
-                int utility = ((TerminatingNode)child).value;
-                node.utilitySum += utility;
-                node.totalGames++;
-                child.utilitySum += utility;
-                child.totalGames++;
-                return utility;
-            }
-
-            int utility = playGameMinMove(child, child.parentActionPieceID);
-            node.utilitySum += utility;
-            node.totalGames++;
-            if(child.solved){
-                TerminatingNode childChild = (TerminatingNode)(child.solvedNode);
-                MinMoveNode childCast = (MinMoveNode)child;
-                TerminatingNode newTerm = new TerminatingNode(0, childCast.parentActionPieceID, childChild.value);
-                node.children.put(childCast.hashCode(), newTerm);
-                assert node.children.size() == node.maxChildren();
-            }
-            return utility;
-        } else {
-        	return simulateRandom(node);            
-        }
-    }
-
-    private int playGameMinMove(Node node, int pieceID) {
-        if(node.isExpanded()){
-            Node child = argmax(node.children.values(), node.totalGames, -1);
-            if(child instanceof TerminatingNode) {
-                int utility = ((TerminatingNode)child).value;
-                node.utilitySum += utility;
-                node.totalGames++;
-                child.utilitySum += utility;
-                child.totalGames++;
-                return utility;
-            }
-    
-            int utility = playGameMinChoose(child);
-            node.utilitySum += utility;
-            node.totalGames++;
-            return utility;
-        } else {
-        	return simulateRandom(node);            
-        }        
-    }
-
-    private int playGameMinChoose(Node node) {
-        if(node.isExpanded()) {
-            // Get best child. Recurse.
-            Node child = argmax(node.children.values(), node.totalGames, -1);
-            if(child instanceof TerminatingNode){                
-                int utility = ((TerminatingNode)child).value;
-                node.utilitySum += utility;
-                node.totalGames++;
-                child.utilitySum += utility;
-                child.totalGames++;
-                return utility;
-            }
+            System.out.println("Ran " + search.getSimulations() + " simulations");
+            if(root.isProven())
+                System.out.println("Root proven: " + root.proven);
+            System.out.println("Tree has " + search.getTreeSize() + " nodes (pruned " + search.getEvicted() + " in " + search.getPrunes() + " passes)");
             
-            int utility = playGameMaxMove(child, ((MaxMoveNode)child).parentActionPieceID);
-            node.utilitySum += utility;
-            node.totalGames++;
-            if(child.solved){
-                TerminatingNode childChild = (TerminatingNode)(child.solvedNode);
-                MaxMoveNode childCast = (MaxMoveNode)child;
-                TerminatingNode newTerm = new TerminatingNode(0, childCast.parentActionPieceID, childChild.value);
-                node.children.put(childCast.hashCode(), newTerm);
-                assert node.children.size() == node.maxChildren();
-            }
-            return utility;
-        } else {
-        	return simulateRandom(node);
+            return search.bestChildAction(root);
         }
     }
 
-    private int simulateRandom(Node node){
-        // Expand a random child. Run a simulation on it. 
-        Node child = node.expandRandom();
-        int utility = MonteCarloBoardSimulation.playGameToFinish(child);
-        node.utilitySum += utility;
-        node.totalGames++;
-        child.utilitySum += utility;
-        child.totalGames++;
-        return utility;
-    }
-
 }
@@ -0,0 +1,248 @@
+import java.util.*;
+
+/**
+ * Maps a position onto a canonical representative of its symmetry class, so positions that only differ
+ * by a symmetry can share one entry in a transposition table or opening book.
+ *
+ * Two kinds of symmetry leave the game unchanged:
+ * (1) Board symmetries: any relabelling of the cells that maps the 12 winning lines onto themselves. For the 
+ *     5x5 board these are the dihedral group (rotations/reflections) plus the row/column permutations that 
+ *     keep both diagonals, e.g. swapping rows 0 and 4 together with columns 0 and 4. We find them all once 
+ *     by trying every (row permutation, column permutation, transpose or not) and keeping those that map 
+ *     lines to lines.
+ * (2) Piece symmetries: a piece is 5 independent binary attributes (see QuartoPiece), so permuting the 5 bits 
+ *     and/or flipping any of them (XOR with a mask) maps pieces sharing an attribute to pieces sharing an 
+ *     attribute. A piece transform is p -> PIECE_PERMUTATIONS[perm][p] ^ xor.
+ *
+ * The canonical form is the lexicographically smallest sequence (pending piece, cell 0, ..., cell 24) over all 
+ * transforms, with empty cells and `no pending piece' left as -1. For a given board symmetry and bit permutation 
+ * the best xor is the one turning the first piece of the sequence into 0, so only the board symmetries x bit 
+ * permutations have to be tried (and most are rejected after a couple of cells).
+ */
+public final class QuartoSymmetry {
+	private static final int numberOfCells = QuartoBoard.numberOfCells;
+	private static final int numberOfPieces = QuartoBoard.numberOfPieces;
+	/**
+	 * CELL_MAPS[g][cell] = where cell ends up under board symmetry g. Index 0 is the identity.
+	 */
+	public static final int[][] CELL_MAPS;
+	/**
+	 * CELL_INVERSES[g][cell] = which cell ends up on cell under board symmetry g.
+	 */
+	private static final int[][] CELL_INVERSES;
+	/**
+	 * PIECE_PERMUTATIONS[perm][pieceID] = pieceID with its attribute bits permuted. Index 0 is the identity.
+	 */
+	public static final int[][] PIECE_PERMUTATIONS;
+	private static final int[][] PIECE_INVERSES;
+
+	static {
+		int size = QuartoBoard.numberOfRows;
+		List<int[]> orders = permutations(size);
+
+		Set<Integer> lineSet = new HashSet<Integer>();
+		for(int line : QuartoBoard.LINE_MASKS)
+			lineSet.add(line);
+
+		// Identity first: rows and columns in order, no transpose.
+		List<int[]> maps = new ArrayList<int[]>();
+		Set<String> seen = new HashSet<String>();
+		for(int transpose = 0; transpose < 2; transpose++) {
+			for(int[] rows : orders) {
+				for(int[] columns : orders) {
+					int[] map = new int[numberOfCells];
+					for(int row = 0; row < size; row++) {
+						for(int column = 0; column < size; column++) {
+							map[row * size + column] = transpose == 0 ? rows[row] * size + columns[column] 
+																	  : columns[column] * size + rows[row];
+						}
+					}
+					if(preservesLines(map, lineSet) && seen.add(Arrays.toString(map)))
+						maps.add(map);
+				}
+			}
+		}
+		CELL_MAPS = maps.toArray(new int[maps.size()][]);
+		CELL_INVERSES = new int[CELL_MAPS.length][numberOfCells];
+		for(int g = 0; g < CELL_MAPS.length; g++)
+			for(int cell = 0; cell < numberOfCells; cell++)
+				CELL_INVERSES[g][CELL_MAPS[g][cell]] = cell;
+
+		List<int[]> bitOrders = permutations(QuartoPiece.numberOfAttributes);
+		PIECE_PERMUTATIONS = new int[bitOrders.size()][numberOfPieces];
+		PIECE_INVERSES = new int[bitOrders.size()][numberOfPieces];
+		for(int k = 0; k < bitOrders.size(); k++) {
+			int[] bits = bitOrders.get(k);
+			for(int pieceID = 0; pieceID < numberOfPieces; pieceID++) {
+				int mapped = 0;
+				for(int b = 0; b < bits.length; b++)
+					if((pieceID & (1 << b)) != 0)
+						mapped |= 1 << bits[b];
+				PIECE_PERMUTATIONS[k][pieceID] = mapped;
+				PIECE_INVERSES[k][mapped] = pieceID;
+			}
+		}
+	}
+
+	private QuartoSymmetry() {
+	}
+
+	/**
+	 * All permutations of {0, ..., n-1}, identity first.
+	 */
+	private static List<int[]> permutations(int n) {
+		List<int[]> result = new ArrayList<int[]>();
+		permute(new int[n], new boolean[n], 0, result);
+		return result;
+	}
+
+	private static void permute(int[] current, boolean[] used, int index, List<int[]> result) {
+		if(index == current.length) {
+			result.add(current.clone());
+			return;
+		}
+		for(int i = 0; i < current.length; i++) {
+			if(!used[i]) {
+				used[i] = true;
+				current[index] = i;
+				permute(current, used, index + 1, result);
+				used[i] = false;
+			}
+		}
+	}
+
+	private static boolean preservesLines(int[] map, Set<Integer> lineSet) {
+		for(int line : QuartoBoard.LINE_MASKS) {
+			int image = 0;
+			for(int cell = 0; cell < numberOfCells; cell++)
+				if((line & (1 << cell)) != 0)
+					image |= 1 << map[cell];
+			if(!lineSet.contains(image))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A board symmetry together with a piece symmetry. Transforms moves between the original position and 
+	 * its canonical form.
+	 */
+	public static final class Canonical {
+		/**
+		 * QuartoBoard.positionKey of the canonical position.
+		 */
+		public final long key;
+		public final int cellMap;
+		public final int piecePermutation;
+		public final int pieceXor;
+
+		private Canonical(long key, int cellMap, int piecePermutation, int pieceXor) {
+			this.key = key;
+			this.cellMap = cellMap;
+			this.piecePermutation = piecePermutation;
+			this.pieceXor = pieceXor;
+		}
+
+		public int toCanonicalCell(int cell) {
+			return CELL_MAPS[cellMap][cell];
+		}
+
+		public int toOriginalCell(int canonicalCell) {
+			return CELL_INVERSES[cellMap][canonicalCell];
+		}
+
+		public int toCanonicalPiece(int pieceID) {
+			return PIECE_PERMUTATIONS[piecePermutation][pieceID] ^ pieceXor;
+		}
+
+		public int toOriginalPiece(int canonicalPieceID) {
+			return PIECE_INVERSES[piecePermutation][canonicalPieceID ^ pieceXor];
+		}
+
+		/**
+		 * Build the canonical board (as a new QuartoBoard).
+		 */
+		public QuartoBoard toCanonicalBoard(QuartoBoard board) {
+			QuartoBoard result = new QuartoBoard((String)null);
+			for(int cell = 0; cell < numberOfCells; cell++)
+				if(board.board[cell] != -1)
+					result.boardSet(toCanonicalCell(cell), toCanonicalPiece(board.board[cell]));
+			return result;
+		}
+	}
+
+	/**
+	 * Find the canonical form of a position: the board, the side to act, and the piece that side has to place 
+	 * (or -1 if it's choosing a piece).
+	 */
+	public static Canonical canonicalize(QuartoBoard board, boolean maxToAct, int pendingPieceID) {
+		int transform = findCanonicalTransform(board, pendingPieceID);
+		int g = transform >>> 16;
+		int k = (transform >>> 8) & 0xFF;
+		int xor = transform & 0xFF;
+		return new Canonical(key(board, maxToAct, pendingPieceID, g, k, xor), g, k, xor);
+	}
+
+	/**
+	 * The key of canonicalize(...), without allocating anything.
+	 */
+	public static long canonicalKey(QuartoBoard board, boolean maxToAct, int pendingPieceID) {
+		int transform = findCanonicalTransform(board, pendingPieceID);
+		return key(board, maxToAct, pendingPieceID, transform >>> 16, (transform >>> 8) & 0xFF, transform & 0xFF);
+	}
+
+	private static long key(QuartoBoard board, boolean maxToAct, int pendingPieceID, int g, int k, int xor) {
+		long hash = 0;
+		int[] map = CELL_MAPS[g];
+		int[] perm = PIECE_PERMUTATIONS[k];
+		for(int cell = 0; cell < numberOfCells; cell++)
+			if(board.board[cell] != -1)
+				hash ^= QuartoBoard.zobrist(map[cell], perm[board.board[cell]] ^ xor);
+		int pending = pendingPieceID < 0 ? -1 : perm[pendingPieceID] ^ xor;
+		return QuartoBoard.positionKey(hash, maxToAct, pending);
+	}
+
+	/**
+	 * Search all transforms for the smallest sequence. Returns the winner packed as (g << 16 | k << 8 | xor).
+	 */
+	private static int findCanonicalTransform(QuartoBoard board, int pendingPieceID) {
+		byte[] cells = board.board;
+		int best = 0;
+		// bestSequence[0] is the pending piece, bestSequence[1 + d] is canonical cell d.
+		int[] bestSequence = null;
+		int[] sequence = new int[numberOfCells + 1];
+
+		for(int g = 0; g < CELL_MAPS.length; g++) {
+			int[] inverse = CELL_INVERSES[g];
+			// The piece that will come first in the sequence under this board symmetry.
+			int first = pendingPieceID;
+			for(int d = 0; first < 0 && d < numberOfCells; d++)
+				first = cells[inverse[d]];
+			if(first < 0) 
+				return 0; // Empty board, nothing pending: every transform gives the same sequence.
+
+			for(int k = 0; k < PIECE_PERMUTATIONS.length; k++) {
+				int[] perm = PIECE_PERMUTATIONS[k];
+				int xor = perm[first];
+				int comparison = bestSequence == null ? -1 : 0;
+
+				sequence[0] = pendingPieceID < 0 ? -1 : perm[pendingPieceID] ^ xor;
+				if(comparison == 0 && sequence[0] != bestSequence[0])
+					comparison = sequence[0] < bestSequence[0] ? -1 : 1;
+				for(int d = 0; comparison <= 0 && d < numberOfCells; d++) {
+					int pieceID = cells[inverse[d]];
+					sequence[d + 1] = pieceID < 0 ? -1 : perm[pieceID] ^ xor;
+					if(comparison == 0 && sequence[d + 1] != bestSequence[d + 1])
+						comparison = sequence[d + 1] < bestSequence[d + 1] ? -1 : 1;
+				}
+				if(comparison < 0) {
+					if(bestSequence == null)
+						bestSequence = new int[numberOfCells + 1];
+					System.arraycopy(sequence, 0, bestSequence, 0, sequence.length);
+					best = (g << 16) | (k << 8) | xor;
+				}
+			}
+		}
+		return best;
+	}
+}
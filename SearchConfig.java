@@ -0,0 +1,97 @@
+/**
+ * Tunable search settings. Everything defaults to the behaviour the agent was tuned with, and can be changed 
+ * from the command line without recompiling, e.g.
+ *     java -Dquarto.seed=42 QuartoPlayerAgent <ip>
+ */
+public final class SearchConfig {
+
+    private SearchConfig() {
+    }
+
+    /**
+     * Fixed seed for every random number generator used by the search, or null to seed from the clock.
+     * With a fixed seed (and a single search thread) runs are reproducible bit for bit.
+     */
+    public static final Long SEED = Long.getLong("quarto.seed");
+
+    /**
+     * Number of threads running the tree search. With more than one, they all work on the same tree 
+     * (see MonteCarloTreeSearch).
+     */
+    public static final int THREADS = Integer.getInteger("quarto.threads", 1);
+
+    /**
+     * With more than one thread: give every thread its own tree and merge the root statistics at the end, 
+     * instead of sharing one tree.
+     */
+    public static final boolean ROOT_PARALLEL = Boolean.getBoolean("quarto.rootParallel");
+
+    /**
+     * Number of playouts run from each newly expanded leaf (leaf parallelism), and the size of the 
+     * work-stealing pool they run on when that's more than 1.
+     */
+    public static final int PLAYOUTS_PER_LEAF = Integer.getInteger("quarto.leafPlayouts", 1);
+    public static final int PLAYOUT_THREADS = Integer.getInteger("quarto.leafThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of games a BatchPlayoutEngine plays out in lockstep. Best as a multiple of the vector length 
+     * (8 ints with AVX2, 16 with AVX-512).
+     */
+    public static final int BATCH_LANES = Integer.getInteger("quarto.batchLanes", 16);
+
+    /**
+     * Share one node between all the paths reaching the same position (see TranspositionTable), keeping at 
+     * most TRANSPOSITION_CAPACITY positions. With canonical keys positions equal up to a symmetry are shared 
+     * too, but computing those keys costs a lot more than a playout.
+     */
+    public static final boolean TRANSPOSITIONS = Boolean.getBoolean("quarto.transpositions");
+    public static final int TRANSPOSITION_CAPACITY = Integer.getInteger("quarto.transpositionCapacity", 1 << 20);
+    public static final boolean CANONICAL_TRANSPOSITIONS = Boolean.getBoolean("quarto.canonicalTranspositions") 
+                                                           && !Boolean.getBoolean("quarto.lazyBoards");
+
+    /**
+     * Search with the array-backed PooledTreeSearch instead of the Node tree for the whole game (it's always 
+     * used for the opening), and its size in nodes.
+     */
+    public static final boolean POOLED_SEARCH = Boolean.getBoolean("quarto.pooledSearch");
+    public static final int POOL_NODES = Integer.getInteger("quarto.poolNodes", 1 << 22);
+
+    /**
+     * Don't keep a copy of the board in every node below the search root; the search rebuilds boards on a 
+     * scratch board as it goes down (see Node). Rules out canonical transpositions.
+     */
+    public static final boolean LAZY_BOARDS = Boolean.getBoolean("quarto.lazyBoards");
+
+    /**
+     * Most nodes the MCTS tree may have; past that the least visited subtrees are pruned. By default about 
+     * half the heap, at roughly 350 bytes a node (150 with lazy boards).
+     */
+    public static final int NODE_BUDGET = Integer.getInteger("quarto.nodeBudget", 
+                                                             (int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / (LAZY_BOARDS ? 150 : 350)));
+
+    /**
+     * Keep searching the game tree on the opponent's time (see QuartoPlayerAgent.startPondering).
+     */
+    public static final boolean PONDER = Boolean.getBoolean("quarto.ponder");
+
+    /**
+     * Hybrid search: probe every node the tree search adds with an alpha-beta search this many actions deep 
+     * (0 for none), and take a proven result instead of a playout. Only done with HYBRID_MIN_EMPTY to 
+     * HYBRID_MAX_EMPTY empty cells; below that the whole game is searched with alpha-beta anyway.
+     */
+    public static final int HYBRID_PLIES = Integer.getInteger("quarto.hybridPlies", 0);
+    public static final int HYBRID_MIN_EMPTY = Integer.getInteger("quarto.hybridMinEmpty", 8);
+    public static final int HYBRID_MAX_EMPTY = Integer.getInteger("quarto.hybridMaxEmpty", 14);
+
+    /**
+     * RAVE equivalence parameter k: a child's all-moves-as-first average gets weight sqrt(k / (3n + k)) 
+     * after n visits in the selection score (see MonteCarloTreeSearch). 0 turns RAVE off.
+     */
+    public static final int RAVE_EQUIVALENCE = Integer.getInteger("quarto.raveEquivalence", 0);
+
+    /**
+     * Progressive widening exponent: a node below the search root visited n times only gets about 
+     * 2 * (n + 1)^WIDENING children, added best prior first (see MonteCarloTreeSearch). 0 turns it off.
+     */
+    public static final double WIDENING = Double.parseDouble(System.getProperty("quarto.widening", "0"));
+}
@@ -0,0 +1,76 @@
+/**
+ * Random number generator used by the search and the playouts, instead of Math.random(). 
+ *
+ * Math.random() goes through one shared java.util.Random, whose atomic compare-and-set on every call becomes 
+ * a contention point as soon as several threads run playouts, and it can't be seeded. This is a plain SplitMix64 
+ * generator with no synchronization at all: each thread gets its own instance from current(), and whoever 
+ * needs one passes it down explicitly. 
+ *
+ * If SearchConfig.SEED is set, the instances are seeded from it in the order threads first ask for one, so a 
+ * single threaded run is reproducible. The tree search's workers get generators split off the searching 
+ * thread's (see split), so they're seeded the same way in every run too.
+ */
+public final class SearchRandom {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private static long nextThreadSeed = SearchConfig.SEED != null ? SearchConfig.SEED : System.nanoTime();
+
+    private static final ThreadLocal<SearchRandom> CURRENT = new ThreadLocal<SearchRandom>() {
+        @Override
+        protected SearchRandom initialValue() {
+            return new SearchRandom(threadSeed());
+        }
+    };
+
+    private long state;
+
+    public SearchRandom(long seed) {
+        this.state = seed;
+    }
+
+    private static synchronized long threadSeed() {
+        nextThreadSeed += GOLDEN_GAMMA;
+        long seed = mix(nextThreadSeed);
+        if(SearchConfig.SEED == null)
+            seed ^= System.nanoTime();
+        return seed;
+    }
+
+    /**
+     * The generator owned by the calling thread.
+     */
+    public static SearchRandom current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * A new, independent generator derived from this one (for handing to a worker).
+     */
+    public SearchRandom split() {
+        return new SearchRandom(mix(nextLong()));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public long nextLong() {
+        return mix(state += GOLDEN_GAMMA);
+    }
+
+    /**
+     * Uniform in [0, bound), for bound > 0. Multiply-shift instead of %, which is faster and unbiased enough
+     * for bounds this small.
+     */
+    public int nextInt(int bound) {
+        return (int)(((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    /**
+     * Uniform in [0, 1).
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Decides how long the agent searches on a turn. Times are System.nanoTime() values.
+ *
+ * The server's clock for a turn runs from when it sends the request until our answer arrives, so what we can
+ * use of timeLimitForResponse is the limit minus the network round trip and whatever runs after the search
+ * (merging and printing). Until a round trip has been measured, a flat initialMargin is held back; after
+ * that the margin is twice the slowest of the last ROUND_TRIPS round trips plus MIN_MARGIN_MILLIS (never more
+ * than the initial margin).
+ *
+ * A turn gets all of that time, unless it has a single sensible action left, which is answered right away.
+ * The search itself also stops early once its answer can't change any more (see MonteCarloTreeSearch).
+ */
+public class TimeManager {
+    // The searches only look at the clock once every this many simulations (a power of 2).
+    public static final int CLOCK_CHECK_INTERVAL = 64;
+    // Held back on top of the measured round trip, for the work after the search and scheduling hiccups.
+    private static final long MIN_MARGIN_MILLIS = 250;
+    // Number of recent round trips the margin is based on.
+    private static final int ROUND_TRIPS = 8;
+
+    private final long initialMargin;
+    private final long[] roundTrips = new long[ROUND_TRIPS];
+    private int measured;
+
+    /**
+     * @param initialMarginMillis - time held back before any round trip has been measured
+     */
+    public TimeManager(long initialMarginMillis) {
+        this.initialMargin = initialMarginMillis * 1000000L;
+    }
+
+    /**
+     * Record the time from sending an answer to receiving the server's acknowledgement.
+     */
+    public synchronized void recordRoundTrip(long nanos) {
+        roundTrips[measured++ % ROUND_TRIPS] = nanos;
+    }
+
+    /**
+     * The time held back from the limit for the network (in nanoseconds).
+     */
+    public synchronized long margin() {
+        if(measured == 0)
+            return initialMargin;
+        long slowest = 0;
+        for(int i = 0; i < Math.min(measured, ROUND_TRIPS); i++)
+            slowest = Math.max(slowest, roundTrips[i]);
+        return Math.min(initialMargin, 2 * slowest + MIN_MARGIN_MILLIS * 1000000L);
+    }
+
+    /**
+     * The last moment to search on a turn that started at start, with limitMillis to answer: all of the
+     * available time.
+     */
+    public long deadline(long start, int limitMillis) {
+        return start + limitMillis * 1000000L - margin();
+    }
+
+    /**
+     * The same for a turn with branching actions to choose from: with only one, there is nothing to decide
+     * and the deadline is start.
+     */
+    public long deadline(long start, int limitMillis, int branching) {
+        return branching <= 1 ? start : deadline(start, limitMillis);
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.*;
+
+/**
+ * Positions already in the search tree, so that the different move orders leading to the same position share
+ * one node (and its statistics), turning the tree into a DAG.
+ *
+ * Keys are Node.positionKey() (board, side to act and phase), or with canonical keys the QuartoSymmetry key, so
+ * that positions that only differ by a symmetry share a node too. A shared node's board is then the position
+ * of whichever path got there first, and its parentAction fields belong to that path as well: the action on
+ * an edge into a shared node is only known from the slot it's stored in in the parent's children.
+ *
+ * The table is bounded: once it holds capacity positions new nodes just aren't shared any more. It only refers
+ * to nodes, it doesn't own them, so clearing it (once a turn) doesn't change the tree.
+ *
+ * Canonical keys need every node to keep its own board (a shared node's actions are in the coordinates of its 
+ * own board), so they can't be combined with lazy boards.
+ */
+public class TranspositionTable {
+    private final ConcurrentHashMap<Long, Node> nodes;
+    private final int capacity;
+    private final boolean canonical;
+
+    public TranspositionTable(int capacity, boolean canonical) {
+        this.nodes = new ConcurrentHashMap<Long, Node>(Math.min(capacity, 1 << 16));
+        this.capacity = capacity;
+        this.canonical = canonical;
+    }
+
+    /**
+     * The node already standing for node's position (its board, given), if any; else node itself, which then 
+     * stands for it (as long as there's room).
+     */
+    public Node share(Node node, QuartoBoard position) {
+        Long key = key(node, position);
+        Node shared = nodes.get(key);
+        if(shared != null)
+            return shared;
+        if(nodes.size() >= capacity)
+            return node;
+        shared = nodes.putIfAbsent(key, node);
+        return shared != null ? shared : node;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    private long key(Node node, QuartoBoard position) {
+        if(!canonical)
+            return node.positionKey(position);
+        boolean moveNode = node instanceof MaxMoveNode || node instanceof MinMoveNode;
+        return QuartoSymmetry.canonicalKey(position, node.isMax(), moveNode ? node.parentActionPieceID : -1);
+    }
+}
@@ -0,0 +1,92 @@
+import jdk.incubator.vector.*;
+
+/**
+ * BatchPlayoutEngine with the three line kernels written with the (incubating) Vector API, so one operation
+ * handles as many games as fit in a vector register. The per-line tests are done with plain lane-wise
+ * arithmetic and blends instead of the LINE_THREATS table lookup, so nothing needs a gather:
+ * a piece completes a line holding 4 pieces if it shares a 1 with the line's AND or a 0 with its OR,
+ * so the pieces that do are the union, over the attributes b, of
+ *    PIECES_WITH[b][1] if b is set in the AND, and PIECES_WITH[b][0] if b is clear in the OR.
+ *
+ * This is only loaded reflectively by BatchPlayoutEngine.createVector(), and needs --add-modules
+ * jdk.incubator.vector both to compile and to run (see the README).
+ */
+public final class VectorBatchPlayoutEngine extends BatchPlayoutEngine {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int FULL_LINE = QuartoBoard.numberOfColumns;
+    private static final int ALL_ATTRIBUTES = (1 << QuartoPiece.numberOfAttributes) - 1;
+
+    // PIECES_WITH[b][v] = the pieces whose attribute b is v, as a mask over piece IDs.
+    private static final int[][] PIECES_WITH = new int[QuartoPiece.numberOfAttributes][2];
+
+    static {
+        for(int pieceID = 0; pieceID < QuartoBoard.numberOfPieces; pieceID++)
+            for(int b = 0; b < QuartoPiece.numberOfAttributes; b++)
+                PIECES_WITH[b][(pieceID >>> b) & 1] |= 1 << pieceID;
+    }
+
+    public VectorBatchPlayoutEngine(int lanes) {
+        super(lanes, (lanes + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length());
+    }
+
+    @Override
+    protected void computeDeadly() {
+        for(int g = 0; g < stride; g += SPECIES.length()) {
+            IntVector mask = IntVector.zero(SPECIES);
+            for(int line = 0, i = g; line < QuartoBoard.numberOfLines; line++, i += stride) {
+                VectorMask<Integer> full = IntVector.fromArray(SPECIES, lineCount, i).eq(FULL_LINE - 1);
+                if(!full.anyTrue())
+                    continue;
+                IntVector and = IntVector.fromArray(SPECIES, lineAnd, i);
+                IntVector notOr = IntVector.fromArray(SPECIES, lineOr, i).not();
+                IntVector threats = IntVector.zero(SPECIES);
+                for(int b = 0; b < QuartoPiece.numberOfAttributes; b++) {
+                    // (x >>> b & 1) negated is all ones if the bit is set, else 0.
+                    IntVector withOne = and.lanewise(VectorOperators.LSHR, b).and(1).neg().and(PIECES_WITH[b][1]);
+                    IntVector withZero = notOr.lanewise(VectorOperators.LSHR, b).and(1).neg().and(PIECES_WITH[b][0]);
+                    threats = threats.or(withOne).or(withZero);
+                }
+                mask = mask.lanewise(VectorOperators.OR, threats, full);
+            }
+            mask.intoArray(deadly, g);
+        }
+    }
+
+    @Override
+    protected void computeWinCells() {
+        for(int g = 0; g < stride; g += SPECIES.length()) {
+            IntVector p = IntVector.fromArray(SPECIES, piece, g);
+            IntVector notP = p.not();
+            IntVector empty = IntVector.fromArray(SPECIES, occupied, g).not();
+            IntVector cells = IntVector.zero(SPECIES);
+            for(int line = 0, i = g; line < QuartoBoard.numberOfLines; line++, i += stride) {
+                VectorMask<Integer> full = IntVector.fromArray(SPECIES, lineCount, i).eq(FULL_LINE - 1);
+                if(!full.anyTrue())
+                    continue;
+                IntVector and = IntVector.fromArray(SPECIES, lineAnd, i);
+                IntVector notOr = IntVector.fromArray(SPECIES, lineOr, i).not();
+                VectorMask<Integer> completes = p.and(and).compare(VectorOperators.NE, 0)
+                    .or(notP.and(notOr).and(ALL_ATTRIBUTES).compare(VectorOperators.NE, 0))
+                    .and(full);
+                cells = cells.lanewise(VectorOperators.OR, empty.and(QuartoBoard.LINE_MASKS[line]), completes);
+            }
+            cells.intoArray(winCells, g);
+        }
+    }
+
+    @Override
+    protected void applyMoves() {
+        for(int g = 0; g < stride; g += SPECIES.length()) {
+            IntVector p = IntVector.fromArray(SPECIES, piece, g);
+            IntVector cell = IntVector.fromArray(SPECIES, cellBit, g);
+            for(int line = 0, i = g; line < QuartoBoard.numberOfLines; line++, i += stride) {
+                VectorMask<Integer> on = cell.and(QuartoBoard.LINE_MASKS[line]).compare(VectorOperators.NE, 0);
+                if(!on.anyTrue())
+                    continue;
+                IntVector.fromArray(SPECIES, lineAnd, i).lanewise(VectorOperators.AND, p, on).intoArray(lineAnd, i);
+                IntVector.fromArray(SPECIES, lineOr, i).lanewise(VectorOperators.OR, p, on).intoArray(lineOr, i);
+                IntVector.fromArray(SPECIES, lineCount, i).lanewise(VectorOperators.ADD, 1, on).intoArray(lineCount, i);
+            }
+        }
+    }
+}